@@ -0,0 +1,124 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheRebuildExecutor;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 本地一级缓存配置，未配置的key前缀只走redis
+     */
+    private List<LocalCacheSpec> local = new ArrayList<>();
+
+    /**
+     * 未单独配置的key前缀使用的编解码器：json、smile
+     */
+    private String defaultCodec = "json";
+
+    /**
+     * 按key前缀指定编解码器，读取时按数据头部自动识别，切换编解码器不影响已有数据
+     */
+    private List<CodecSpec> codecs = new ArrayList<>();
+
+    /**
+     * 概率提前刷新的系数，大于1更积极地提前刷新，小于1更接近过期才刷新
+     */
+    private double earlyRefreshBeta = 1.0;
+
+    /**
+     * 缓存重建线程池配置
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    /**
+     * 热点key探测与本地固定缓存配置
+     */
+    private HotKey hotKey = new HotKey();
+
+    @Data
+    public static class LocalCacheSpec {
+        /**
+         * key前缀，例如 cache:shop:
+         */
+        private String prefix;
+        /**
+         * 最大条目数，超出后按W-TinyLFU淘汰
+         */
+        private long maximumSize = 10000;
+        /**
+         * 写入后的存活时间，兜底防止跨节点失效消息丢失
+         */
+        private Duration expireAfterWrite = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Rebuild {
+        /**
+         * 重建线程数
+         */
+        private int threads = 10;
+        /**
+         * 排队任务上限
+         */
+        private int queueCapacity = 1000;
+        /**
+         * 队列满时的处理方式
+         */
+        private CacheRebuildExecutor.RejectionPolicy rejectionPolicy = CacheRebuildExecutor.RejectionPolicy.DISCARD_COLDEST;
+        /**
+         * 停机时等待排队任务执行完的最长时间
+         */
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class HotKey {
+        private boolean enabled = true;
+        /**
+         * 滑动窗口长度，单位秒
+         */
+        private int windowSeconds = 10;
+        /**
+         * 每秒访问次数达到该值即为热点
+         */
+        private double threshold = 200;
+        /**
+         * 抽样比例，1表示每次读取都计数
+         */
+        private double sampleRate = 1.0;
+        /**
+         * count-min sketch 的宽度和行数
+         */
+        private int sketchWidth = 2048;
+        private int sketchDepth = 4;
+        /**
+         * 热点key数量上限
+         */
+        private int maxHotKeys = 100;
+        /**
+         * 热点key在本地固定缓存中的存活时间，修改后通过失效广播立即删除
+         */
+        private Duration pinTtl = Duration.ofSeconds(3);
+    }
+
+    @Data
+    public static class CodecSpec {
+        /**
+         * key前缀，例如 cache:shop:
+         */
+        private String prefix;
+        /**
+         * 编解码器名称：json、smile
+         */
+        private String codec;
+    }
+}
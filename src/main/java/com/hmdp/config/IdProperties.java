@@ -0,0 +1,54 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    /**
+     * RedisIdWorker每次INCRBY租用的序列号个数，0或1表示每个id自增一次
+     */
+    private long segmentSize = 0;
+
+    /**
+     * 各keyPrefix使用的id生成器，没有配置的使用redis
+     */
+    private Map<String, Generator> generators = new HashMap<>();
+
+    /**
+     * 本地snowflake生成器配置
+     */
+    private Snowflake snowflake = new Snowflake();
+
+    public enum Generator {
+        /**
+         * RedisIdWorker，秒级时间戳 + 按天自增序列号
+         */
+        REDIS,
+        /**
+         * SnowflakeIdGenerator，本地生成，不访问redis
+         */
+        SNOWFLAKE
+    }
+
+    @Data
+    public static class Snowflake {
+        /**
+         * worker id租约的过期时间，每1/3续期一次，租约过期前没有续期成功的节点停止发号
+         */
+        private Duration leaseTtl = Duration.ofSeconds(30);
+
+        /**
+         * 允许的时钟回拨，回拨期间沿用上一次的时间戳继续发号，超过后拒绝发号
+         */
+        private Duration maxBackward = Duration.ofSeconds(1);
+    }
+}
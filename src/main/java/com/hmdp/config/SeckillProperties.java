@@ -0,0 +1,143 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 订单stream的分区数N，每个分区使用独立的hash tag，可以分布在不同的redis节点上
+     * 修改后已有的库存和订单key不会迁移，需要在没有进行中的秒杀时调整
+     */
+    private int partitions = 1;
+
+    /**
+     * 每个代金券的库存拆分成的桶数K
+     */
+    private int stockBuckets = 1;
+
+    /**
+     * 订单消息消费者配置
+     */
+    private Consumer consumer = new Consumer();
+
+    /**
+     * 超时未确认消息的回收配置
+     */
+    private Reclaim reclaim = new Reclaim();
+
+    /**
+     * redis与数据库库存对账配置
+     */
+    private Reconcile reconcile = new Reconcile();
+
+    /**
+     * 下单前的限流配置
+     */
+    private Admission admission = new Admission();
+
+    @Data
+    public static class Consumer {
+        /**
+         * 消费者数量下限，启动时创建这么多个，每个分区至少一个
+         */
+        private int minConsumers = 1;
+        /**
+         * 消费者数量上限
+         */
+        private int maxConsumers = 8;
+        /**
+         * 每次XREADGROUP读取的消息条数
+         */
+        private int batchSize = 50;
+        /**
+         * 没有消息时阻塞等待的时间
+         */
+        private Duration block = Duration.ofSeconds(2);
+        /**
+         * 写库通道数，订单按userId哈希分到通道，同一用户的订单在本节点内串行写入
+         */
+        private int lanes = 4;
+    }
+
+    @Data
+    public static class Reclaim {
+        /**
+         * 消息投递后超过该时间未确认，视为消费者已宕机或处理失败
+         */
+        private Duration minIdle = Duration.ofSeconds(30);
+        /**
+         * 投递次数超过该值的消息转入死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 每次XPENDING查询的条数
+         */
+        private int batchSize = 100;
+    }
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 每次对账的代金券数量，按voucher_id游标分批，全部检查完后从头开始
+         */
+        private int batchSize = 100;
+        /**
+         * 是否自动修复：以数据库为准调整redis库存，连续两次检查到相同偏差才修复
+         */
+        private boolean repair = false;
+        /**
+         * 主分区占位的最长时间，超过后仍在占位记录中且数据库没有订单的，视为下单请求异常退出，从下单用户集合移除
+         */
+        private Duration claimTtl = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Admission {
+        private boolean enabled = true;
+        /**
+         * 默认限流，没有单独配置的代金券使用
+         */
+        private Limit defaults = new Limit();
+        /**
+         * 按代金券单独配置，voucherId -> 限流
+         */
+        private Map<Long, Limit> vouchers = new HashMap<>();
+        /**
+         * 本地令牌桶容量不超过剩余库存的倍数，库存卖完前放进来的请求不会比库存多太多
+         */
+        private double stockFactor = 2.0;
+        /**
+         * 剩余库存的刷新间隔
+         */
+        private Duration stockRefresh = Duration.ofSeconds(1);
+        /**
+         * 每次从redis租用的全局许可数
+         */
+        private int leaseChunk = 50;
+    }
+
+    @Data
+    public static class Limit {
+        /**
+         * 本节点每秒放行的请求数
+         */
+        private double rate = 1000;
+        /**
+         * 本节点令牌桶容量，允许的瞬时突发
+         */
+        private int burst = 200;
+        /**
+         * 所有节点合计每秒放行的请求数，0表示不限制
+         */
+        private long globalRate = 0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.service.impl.SeckillOrderReclaimer;
+import com.hmdp.service.impl.SeckillStockReconciler;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LuaScriptRegistry;
+import com.hmdp.utils.SeckillAdmission;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运维控制器
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private SeckillOrderReclaimer seckillOrderReclaimer;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private SeckillStockReconciler seckillStockReconciler;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    /**
+     * 查询各key前缀的缓存分层命中统计
+     * @return 前缀 -> 本地/redis 命中与未命中次数
+     */
+    @GetMapping("/cache/stats")
+    public Result cacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询缓存重建线程池的队列深度、耗时与失败次数
+     */
+    @GetMapping("/cache/rebuild")
+    public Result cacheRebuildStats() {
+        return Result.ok(cacheRebuildExecutor.stats());
+    }
+
+    /**
+     * 查询当前的热点key及其每秒访问次数
+     */
+    @GetMapping("/hotkeys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 查询缓存预热进度
+     */
+    @GetMapping("/warmup")
+    public Result warmupProgress() {
+        return Result.ok(cacheWarmer.progress());
+    }
+
+    /**
+     * 重新预热，例如redis被清空后
+     */
+    @PostMapping("/warmup")
+    public Result warmup() {
+        if (!cacheWarmer.start()) {
+            return Result.fail("预热正在进行中");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询订单消息的pending数量、回收与死信统计
+     */
+    @GetMapping("/orders/dlq")
+    public Result orderDeadLetters() {
+        return Result.ok(seckillOrderReclaimer.stats());
+    }
+
+    /**
+     * 把死信队列中最早的count条消息重新放回订单队列
+     * @return 实际重放的条数
+     */
+    @PostMapping("/orders/dlq/replay")
+    public Result replayOrderDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return Result.ok(seckillOrderReclaimer.replay(count));
+    }
+
+    /**
+     * 秒杀券补货
+     * @param voucherId 秒杀券id
+     * @param count 增加的库存
+     */
+    @PostMapping("/seckill/{voucherId}/restock")
+    public Result restockSeckillVoucher(@PathVariable("voucherId") Long voucherId, @RequestParam("count") Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补货数量必须大于0");
+        }
+        if (!voucherService.restockSeckillVoucher(voucherId, count)) {
+            return Result.fail("秒杀券不存在");
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询秒杀库存对账统计和当前不一致的代金券
+     */
+    @GetMapping("/seckill/reconcile")
+    public Result reconcileStats() {
+        return Result.ok(seckillStockReconciler.stats());
+    }
+
+    /**
+     * 立即从游标位置对账一批代金券
+     * @return 本次检查的数量
+     */
+    @PostMapping("/seckill/reconcile")
+    public Result reconcile() {
+        return Result.ok(seckillStockReconciler.reconcileBatch());
+    }
+
+    /**
+     * 查询秒杀限流的放行与拒绝次数
+     */
+    @GetMapping("/seckill/admission")
+    public Result admissionStats() {
+        return Result.ok(seckillAdmission.stats());
+    }
+
+    /**
+     * 查询各lua脚本的sha、失败次数与耗时分布
+     */
+    @GetMapping("/scripts")
+    public Result scriptStats() {
+        return Result.ok(luaScriptRegistry.stats());
+    }
+
+    /**
+     * 重新加载全部lua脚本，例如redis执行过SCRIPT FLUSH后
+     */
+    @PostMapping("/scripts/reload")
+    public Result reloadScripts() {
+        luaScriptRegistry.loadAll();
+        return Result.ok();
+    }
+}
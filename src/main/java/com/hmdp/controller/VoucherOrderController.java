@@ -3,12 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -25,8 +29,30 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    //长轮询的异步请求超时，服务层最多等待30秒，这里只是兜底
+    private static final long ORDER_STATUS_ASYNC_TIMEOUT = TimeUnit.SECONDS.toMillis(35);
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态，支持长轮询
+     * @param orderId 下单返回的订单id
+     * @param timeout 排队中时最多等待的秒数，不超过30，0表示立即返回
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "0") Integer timeout) {
+        DeferredResult<Result> deferredResult = new DeferredResult<>(ORDER_STATUS_ASYNC_TIMEOUT, Result.fail("查询超时"));
+        voucherOrderService.queryOrderStatus(orderId, timeout).whenComplete((result, e) -> {
+            if (e != null) {
+                deferredResult.setErrorResult(e);
+            } else {
+                deferredResult.setResult(result);
+            }
+        });
+        return deferredResult;
+    }
 }
@@ -0,0 +1,30 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量创建订单的结果，各类订单的消息都可以确认
+ */
+@Data
+public class OrderBatchResult {
+    /**
+     * 写入成功并扣减了库存的订单
+     */
+    private List<VoucherOrder> accepted = new ArrayList<>();
+    /**
+     * 之前已经写入过的订单(消息重复投递)，不再扣减库存
+     */
+    private List<VoucherOrder> redelivered = new ArrayList<>();
+    /**
+     * 重复的订单：同一用户已经购买过该代金券
+     */
+    private List<VoucherOrder> duplicates = new ArrayList<>();
+    /**
+     * 数据库库存不足被丢弃的订单，消费者会撤销它们在redis中的下单记录
+     */
+    private List<VoucherOrder> soldOut = new ArrayList<>();
+}
@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 
 /**
  * <p>
@@ -13,4 +14,14 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 库存足够时一次扣减count个
+     * @return 影响行数，0表示库存不足
+     */
+    int decreaseStock(@Param("voucherId") Long voucherId, @Param("count") int count);
+
+    /**
+     * 加行锁查询库存，只能在事务中使用
+     */
+    Integer selectStockForUpdate(@Param("voucherId") Long voucherId);
 }
@@ -1,9 +1,13 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.OrderBatchResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +20,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherId);
+    /**
+     * 查询秒杀订单的处理状态：QUEUED、PERSISTED、FAILED
+     * @param timeoutSec 状态为QUEUED时最多等待的秒数，不超过30，0表示立即返回
+     * @return 进入终态或等待超时时完成
+     */
+    CompletableFuture<Result> queryOrderStatus(Long orderId, int timeoutSec);
+
+    /**
+     * 在一个事务中批量创建订单：一条INSERT IGNORE多行插入，由唯一索引保证一人一单，
+     * 再按实际插入的数量每个代金券扣减一次库存
+     * @return 写入成功、重复投递、重复购买、库存不足的订单
+     */
+    OrderBatchResult createVoucherOrders(List<VoucherOrder> voucherOrders);
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -17,4 +18,16 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 秒杀券补货，数据库和redis库存同时增加，并清除售罄标记
+     * @return 秒杀券不存在时返回false
+     */
+    boolean restockSeckillVoucher(Long voucherId, int count);
+
+    /**
+     * 秒杀券预热：写入时间窗口，redis中没有库存时按数据库库存加载
+     * @return 是否加载了库存
+     */
+    boolean preheatSeckillVoucher(SeckillVoucher seckillVoucher);
 }
@@ -14,6 +14,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilters;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -24,10 +25,12 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -50,8 +53,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private BloomFilters bloomFilters;
+
     @Override
     public Result queryBlogById(Long id) {
+        //0.布隆过滤器判断不存在，直接返回
+        if (!bloomFilters.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在");
+        }
         //1.查询blog
         Blog blog = this.lambdaQuery().eq(Blog::getId, id).one();
         if (blog == null) {
@@ -93,10 +103,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 批量查询用户
+        Set<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> users = userService.queryUserDTOs(userIds);
         records.forEach(blog -> {
             this.isBlogLiked(blog);
-            this.queryBlogUser(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
         });
         return Result.ok(records);
     }
@@ -160,6 +176,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        //登记到布隆过滤器
+        bloomFilters.add(CACHE_BLOG_KEY, blog.getId());
         //查询笔记博主的所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.lambdaQuery().eq(Follow::getFollowUserId, userDTO.getId()).list();
 
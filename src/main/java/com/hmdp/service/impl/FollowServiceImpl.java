@@ -1,12 +1,10 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -16,6 +14,7 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -86,10 +85,8 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         }
         //解析id
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        //查询用户
-        List<User> users = userService.lambdaQuery().in(User::getId, ids).list();
-        //转换类型
-        List<UserDTO> userDTOS = BeanUtil.copyToList(users, UserDTO.class);
+        //批量查询用户
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUserDTOs(ids).values());
 
         return Result.ok(userDTOS);
     }
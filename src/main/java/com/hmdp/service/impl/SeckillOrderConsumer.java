@@ -0,0 +1,328 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.OrderBatchResult;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillPartitioner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 秒杀订单消费者：每个分区stream.orders:{p}有自己的消费者组，每个消费者线程固定读取一个分区，
+ * 批量读取后按userId分到写库通道，每个通道在一个事务中写入数据库，再一次XACK
+ * 消费者数量在上下限之间按各分区的读取情况自动伸缩：读满一批的比例高时增加，全部读空时减少
+ */
+@Slf4j
+@Component
+public class SeckillOrderConsumer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    private static final long ERROR_BACKOFF_MILLIS = 1000;
+
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+
+    //消费者名称 进程号@主机名-序号，保证多个节点、多个线程之间不重复
+    private final String namePrefix = ManagementFactory.getRuntimeMXBean().getName();
+    private final AtomicInteger index = new AtomicInteger();
+
+    //每个分区自上次伸缩检查以来的读取次数、读满一批的次数、读空的次数
+    private PartitionStats[] partitionStats;
+
+    //写库通道，每个通道一个线程
+    private ExecutorService[] lanes;
+
+    @PostConstruct
+    private void init() {
+        lanes = new ExecutorService[seckillProperties.getConsumer().getLanes()];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "seckill-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, name));
+        }
+        int partitions = seckillPartitioner.partitions();
+        partitionStats = new PartitionStats[partitions];
+        for (int p = 0; p < partitions; p++) {
+            partitionStats[p] = new PartitionStats();
+            createGroup(seckillPartitioner.streamKey(p));
+        }
+        //每个分区至少一个消费者，其余的轮流分配
+        int count = Math.max(seckillProperties.getConsumer().getMinConsumers(), partitions);
+        for (int i = 0; i < count; i++) {
+            addWorker(i % partitions);
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        for (Worker worker : workers) {
+            worker.running = false;
+        }
+        for (Worker worker : workers) {
+            worker.thread.join(seckillProperties.getConsumer().getBlock().toMillis() * 2);
+        }
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * 按上一个周期各分区的读取情况伸缩消费者数量
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.consumer.scale-interval:5000}")
+    public void autoscale() {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        for (int p = 0; p < partitionStats.length; p++) {
+            PartitionStats stats = partitionStats[p];
+            long total = stats.reads.sumThenReset();
+            long full = stats.fullReads.sumThenReset();
+            long empty = stats.emptyReads.sumThenReset();
+            if (total > 0 && full * 2 >= total && workers.size() < config.getMaxConsumers()) {
+                //一半以上的读取都读满了一批，消息有积压
+                addWorker(p);
+                log.info("分区{}订单消息积压, 消费者共{}个", p, workers.size());
+            } else if (total > 0 && empty == total && workers.size() > config.getMinConsumers()) {
+                //全部读空，该分区保留一个，其余减少一个
+                removeWorker(p);
+            }
+        }
+    }
+
+    public int consumerCount() {
+        return workers.size();
+    }
+
+    /**
+     * 本节点的消费者名称前缀
+     */
+    String namePrefix() {
+        return namePrefix;
+    }
+
+    //XGROUP CREATE stream.orders:{p} g1 0 MKSTREAM，已存在时忽略
+    private void createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            if (e.getCause() == null || !String.valueOf(e.getCause().getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void addWorker(int partition) {
+        Worker worker = new Worker(namePrefix + "-" + index.incrementAndGet(), partition);
+        workers.add(worker);
+        worker.thread.start();
+    }
+
+    private void removeWorker(int partition) {
+        Worker last = null;
+        int count = 0;
+        for (Worker worker : workers) {
+            if (worker.partition == partition) {
+                last = worker;
+                count++;
+            }
+        }
+        if (count > 1 && workers.remove(last)) {
+            last.running = false;
+            log.info("分区{}订单消息空闲, 消费者共{}个", partition, workers.size());
+        }
+    }
+
+    private static class PartitionStats {
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder fullReads = new LongAdder();
+        private final LongAdder emptyReads = new LongAdder();
+    }
+
+    private class Worker implements Runnable {
+        private final String name;
+        private final int partition;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Worker(String name, int partition) {
+            this.name = name;
+            this.partition = partition;
+            this.thread = new Thread(this, "seckill-order-" + partition + "-" + name);
+        }
+
+        @Override
+        public void run() {
+            SeckillProperties.Consumer config = seckillProperties.getConsumer();
+            String stream = seckillPartitioner.streamKey(partition);
+            PartitionStats stats = partitionStats[partition];
+            while (running) {
+                try {
+                    //1. 批量获取订单信息 XREADGROUP GROUP g1 name COUNT n BLOCK 2000 STREAMS stream.orders:{p} >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, name),
+                            StreamReadOptions.empty().count(config.getBatchSize()).block(config.getBlock()),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                    stats.reads.increment();
+                    //2. 判断消息是否获取成功
+                    if (records == null || records.isEmpty()) {
+                        stats.emptyReads.increment();
+                        continue;
+                    }
+                    if (records.size() >= config.getBatchSize()) {
+                        stats.fullReads.increment();
+                    }
+                    //3. 整批写入数据库后一次ACK
+                    handleRecords(stream, records);
+                } catch (Exception e) {
+                    //处理失败的消息留在pending-list中，由SeckillOrderReclaimer重试或转入死信队列
+                    log.error("订单处理异常", e);
+                    backoff();
+                }
+            }
+        }
+    }
+
+    //出现异常时稍等再读，避免redis或数据库不可用时空转
+    private void backoff() {
+        try {
+            Thread.sleep(ERROR_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 消息按userId哈希分到各写库通道，每个通道的订单在一个事务中写入数据库，
+     * 再用一条XACK确认写入成功的消息；有通道失败时抛出异常，失败的消息留在pending-list中
+     */
+    void handleRecords(String stream, List<MapRecord<String, Object, Object>> records) {
+        //1.按通道分组
+        Map<Integer, List<MapRecord<String, Object, Object>>> byLane = new HashMap<>();
+        Map<Integer, List<VoucherOrder>> ordersByLane = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            int lane = laneOf(voucherOrder.getUserId());
+            byLane.computeIfAbsent(lane, k -> new ArrayList<>()).add(record);
+            ordersByLane.computeIfAbsent(lane, k -> new ArrayList<>()).add(voucherOrder);
+        }
+        //2.各通道并行写库，同一通道内串行
+        Map<Integer, Future<OrderBatchResult>> futures = new HashMap<>();
+        for (Map.Entry<Integer, List<VoucherOrder>> entry : ordersByLane.entrySet()) {
+            List<VoucherOrder> voucherOrders = entry.getValue();
+            futures.put(entry.getKey(), lanes[entry.getKey()].submit(() -> voucherOrderService.createVoucherOrders(voucherOrders)));
+        }
+        //3.收集写入成功的消息
+        List<RecordId> ids = new ArrayList<>(records.size());
+        List<OrderBatchResult> results = new ArrayList<>(futures.size());
+        Exception failure = null;
+        for (Map.Entry<Integer, Future<OrderBatchResult>> entry : futures.entrySet()) {
+            try {
+                results.add(entry.getValue().get());
+                for (MapRecord<String, Object, Object> record : byLane.get(entry.getKey())) {
+                    ids.add(record.getId());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = e;
+            }
+        }
+        //4.XACK stream.orders:{p} g1 id1 id2 ...
+        if (!ids.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0]));
+        }
+        //5.撤销数据库库存不足的订单在redis中的下单记录，再更新订单状态，通知等待结果的请求
+        for (OrderBatchResult result : results) {
+            releaseSoldOut(result.getSoldOut());
+            updateStatus(result);
+        }
+        if (failure != null) {
+            throw new IllegalStateException("订单写入失败, 成功" + ids.size() + "/" + records.size() + "条",
+                    failure instanceof ExecutionException ? failure.getCause() : failure);
+        }
+    }
+
+    /**
+     * 数据库库存不足丢弃的订单，两边都撤销：数据库没有扣库存、订单已删除，
+     * redis中从下单用户集合移除并归还一个库存到用户的首个库存桶(订单扣的是哪个桶消息中没有记录，对账只看总和)，
+     * 对账等式不变，用户补货后可以重新下单
+     */
+    private void releaseSoldOut(List<VoucherOrder> soldOut) {
+        if (soldOut.isEmpty()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder voucherOrder : soldOut) {
+                    Long voucherId = voucherOrder.getVoucherId();
+                    Long userId = voucherOrder.getUserId();
+                    connection.setCommands().sRem(seckillPartitioner.buyerKey(voucherId, userId).getBytes(StandardCharsets.UTF_8),
+                            userId.toString().getBytes(StandardCharsets.UTF_8));
+                    connection.stringCommands().incr(seckillPartitioner.stockKey(voucherId, seckillPartitioner.homeBucket(userId))
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("撤销库存不足订单的redis记录失败, {}个订单", soldOut.size(), e);
+        }
+    }
+
+    //状态更新失败不影响订单，查询时会回退到数据库
+    private void updateStatus(OrderBatchResult result) {
+        try {
+            orderStatusTracker.persisted(result.getAccepted());
+            orderStatusTracker.persisted(result.getRedelivered());
+            for (VoucherOrder voucherOrder : result.getDuplicates()) {
+                orderStatusTracker.failed(voucherOrder.getId(), "不能重复下单");
+            }
+            for (VoucherOrder voucherOrder : result.getSoldOut()) {
+                orderStatusTracker.failed(voucherOrder.getId(), "库存不足");
+            }
+        } catch (Exception e) {
+            log.error("更新订单状态失败", e);
+        }
+    }
+
+    //同一用户固定在一个通道，本节点内不会并发写入同一用户的订单，跨节点的重复由唯一索引(user_id, voucher_id)兜底
+    private int laneOf(Long userId) {
+        return Math.floorMod(Long.hashCode(userId), lanes.length);
+    }
+}
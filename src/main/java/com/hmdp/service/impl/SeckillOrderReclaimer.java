@@ -0,0 +1,222 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillPartitioner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 回收超时未确认的订单消息：XPENDING找出空闲超过min-idle的消息，XCLAIM转给本节点的回收消费者后重新处理，
+ * 宕机节点遗留的消息也能被接管；投递次数超过上限的消息转入死信队列，不再重试
+ * spring-data-redis 2.6 没有XAUTOCLAIM，使用 XPENDING + XCLAIM 实现，XCLAIM的min-idle保证多个节点不会重复接管
+ */
+@Slf4j
+@Component
+public class SeckillOrderReclaimer {
+
+    //死信消息中附加的字段
+    private static final String DLQ_ORIGIN_ID = "originId";
+    private static final String DLQ_DELIVERIES = "deliveries";
+    private static final String DLQ_CONSUMER = "consumer";
+    private static final String DLQ_STREAM = "stream";
+
+    //每次最多翻页的次数，避免pending-list很长时一次检查太久
+    private static final int MAX_PAGES = 10;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillOrderConsumer seckillOrderConsumer;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reclaim.interval:10000}")
+    public void reclaim() {
+        for (String stream : seckillPartitioner.streamKeys()) {
+            try {
+                reclaim(stream);
+            } catch (Exception e) {
+                log.error("回收pending消息失败, stream={}", stream, e);
+            }
+        }
+    }
+
+    private void reclaim(String stream) {
+        SeckillProperties.Reclaim config = seckillProperties.getReclaim();
+        String owner = seckillOrderConsumer.namePrefix() + "-reclaimer";
+        Range<String> range = Range.unbounded();
+        for (int page = 0; page < MAX_PAGES; page++) {
+            //1.XPENDING stream.orders:{p} g1 - + count，找出空闲时间超过min-idle的消息
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(stream, SECKILL_ORDER_GROUP, range, config.getBatchSize());
+            if (pending.isEmpty()) {
+                return;
+            }
+            Map<String, PendingMessage> idle = new LinkedHashMap<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().compareTo(config.getMinIdle()) >= 0) {
+                    idle.put(message.getIdAsString(), message);
+                }
+            }
+            //2.XCLAIM，只有空闲时间仍超过min-idle的才会被接管，投递次数加一
+            if (!idle.isEmpty()) {
+                List<MapRecord<String, Object, Object>> records = claim(stream, owner, idle.keySet());
+                claimed.add(records.size());
+                handleClaimed(stream, records, idle);
+            }
+            if (pending.size() < config.getBatchSize()) {
+                return;
+            }
+            //3.下一页从最后一条的下一个id开始
+            RecordId last = pending.get(pending.size() - 1).getId();
+            range = Range.rightUnbounded(Range.Bound.inclusive(
+                    RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue()));
+        }
+    }
+
+    //XCLAIM stream g1 owner min-idle id...，已被删除的消息不会返回
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<MapRecord<String, Object, Object>> claim(String stream, String owner, Collection<String> ids) {
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdle(seckillProperties.getReclaim().getMinIdle())
+                .ids(ids.toArray(new String[0]));
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(stream.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, owner, options));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> result = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            result.add((MapRecord) record.deserialize(StringRedisSerializer.UTF_8));
+        }
+        return result;
+    }
+
+    private void handleClaimed(String stream, List<MapRecord<String, Object, Object>> records, Map<String, PendingMessage> pending) {
+        List<MapRecord<String, Object, Object>> retry = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            PendingMessage message = pending.get(record.getId().getValue());
+            //XCLAIM已经把投递次数加一
+            long deliveries = message.getTotalDeliveryCount() + 1;
+            if (deliveries > seckillProperties.getReclaim().getMaxDeliveries()) {
+                deadLetter(stream, record, deliveries, message.getConsumerName());
+            } else {
+                retry.add(record);
+            }
+        }
+        if (retry.isEmpty()) {
+            return;
+        }
+        try {
+            //先整批重试
+            seckillOrderConsumer.handleRecords(stream, retry);
+            recovered.add(retry.size());
+        } catch (Exception e) {
+            //整批失败时逐条重试，找出有问题的消息，它们留在pending-list中等待下一次回收
+            for (MapRecord<String, Object, Object> record : retry) {
+                try {
+                    seckillOrderConsumer.handleRecords(stream, Collections.singletonList(record));
+                    recovered.increment();
+                } catch (Exception ex) {
+                    failed.increment();
+                    log.error("订单消息重试失败, id={}", record.getId(), ex);
+                }
+            }
+        }
+    }
+
+    //写入死信队列后确认原消息
+    private void deadLetter(String stream, MapRecord<String, Object, Object> record, long deliveries, String consumer) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        record.getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+        fields.put(DLQ_ORIGIN_ID, record.getId().getValue());
+        fields.put(DLQ_DELIVERIES, String.valueOf(deliveries));
+        fields.put(DLQ_CONSUMER, consumer);
+        fields.put(DLQ_STREAM, stream);
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_DLQ).ofMap(fields));
+        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, record.getId());
+        deadLettered.increment();
+        log.error("订单消息转入死信队列, id={}, 投递{}次", record.getId(), deliveries);
+        //订单id在lua中生成时是0x开头的16进制
+        String orderId = fields.get("id");
+        if (orderId != null) {
+            orderStatusTracker.failed(Long.decode(orderId), "订单处理失败");
+        }
+    }
+
+    /**
+     * 把死信队列中最早的count条消息重新放回原来的分区
+     * @return 实际重放的条数
+     */
+    public int replay(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null) {
+            return 0;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            record.getValue().forEach((k, v) -> fields.put(k.toString(), v.toString()));
+            fields.remove(DLQ_ORIGIN_ID);
+            fields.remove(DLQ_DELIVERIES);
+            fields.remove(DLQ_CONSUMER);
+            String stream = fields.remove(DLQ_STREAM);
+            if (stream == null) {
+                stream = seckillPartitioner.streamKey(0);
+            }
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(stream).ofMap(fields));
+            stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_DLQ, record.getId());
+            replayed.increment();
+        }
+        log.info("死信队列重放{}条订单消息", records.size());
+        return records.size();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long pending = 0;
+        for (String stream : seckillPartitioner.streamKeys()) {
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP);
+            pending += summary == null ? 0 : summary.getTotalPendingMessages();
+        }
+        map.put("pending", pending);
+        Long dlqSize = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DLQ);
+        map.put("deadLetterSize", dlqSize == null ? 0 : dlqSize);
+        map.put("claimed", claimed.sum());
+        map.put("recovered", recovered.sum());
+        map.put("failed", failed.sum());
+        map.put("deadLettered", deadLettered.sum());
+        map.put("replayed", replayed.sum());
+        return map;
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 秒杀预热：定期把未来lookahead内开始、尚未结束的秒杀券的时间窗口和库存加载到redis，
+ * 开抢第一秒的请求访问的都是已经存在的key；启动时立即执行一次，
+ * redis数据丢失后按数据库的订单恢复下单用户集合，再按数据库库存加载库存
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Value("${hmdp.seckill.preheat.lookahead:10m}")
+    private Duration lookahead;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval:60000}")
+    public void preheat() {
+        try {
+            //select * from tb_seckill_voucher where begin_time <= now + lookahead and end_time > now
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.lambdaQuery()
+                    .le(SeckillVoucher::getBeginTime, now.plus(lookahead))
+                    .gt(SeckillVoucher::getEndTime, now)
+                    .list();
+            int loaded = 0;
+            for (SeckillVoucher voucher : vouchers) {
+                if (voucherService.preheatSeckillVoucher(voucher)) {
+                    loaded++;
+                }
+            }
+            if (loaded > 0) {
+                log.info("秒杀预热完成, 共{}个秒杀券, 加载库存{}个", vouchers.size(), loaded);
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热失败", e);
+        }
+    }
+}
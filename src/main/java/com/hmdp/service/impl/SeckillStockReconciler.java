@@ -0,0 +1,286 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillPartitioner;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_CURSOR_KEY;
+
+/**
+ * 秒杀库存对账：对未结束的代金券检查 redis库存 + 下单用户数 == 数据库库存 + 订单数
+ * 两边在下单时都是一减一加，总和等于初始库存加补货，排队中的订单不影响等式
+ * 按voucher_id游标分批检查，游标保存在redis中，多个节点共用
+ * 开启repair时以数据库为准调整redis库存，连续两次检查到相同偏差才修复，避免把检查期间的并发下单当成偏差
+ * 数据库有订单而redis中没有下单用户时，说明下单用户集合丢失了，补库存会让已购买的用户再次下单，只告警不修复
+ * 检查前先清理超过claim-ttl的主分区占位：下单请求异常退出留下的下单用户没有对应的库存扣减，会被当成偏差
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    //当前有偏差的代金券，一致后移除
+    private final Map<Long, Drift> drifts = new ConcurrentHashMap<>();
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder drifted = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder staleClaims = new LongAdder();
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        try {
+            reconcileBatch();
+        } catch (Exception e) {
+            log.error("库存对账失败", e);
+        }
+    }
+
+    /**
+     * 从游标位置开始检查一批代金券
+     * @return 本次检查的数量
+     */
+    public int reconcileBatch() {
+        //1.读取游标，查询下一批未结束的秒杀券 voucher_id > cursor order by voucher_id limit n
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_RECONCILE_CURSOR_KEY);
+        long cursor = value == null ? 0 : Long.parseLong(value);
+        int batchSize = seckillProperties.getReconcile().getBatchSize();
+        List<SeckillVoucher> vouchers = seckillVoucherService.lambdaQuery()
+                .gt(SeckillVoucher::getVoucherId, cursor)
+                .gt(SeckillVoucher::getEndTime, LocalDateTime.now())
+                .orderByAsc(SeckillVoucher::getVoucherId)
+                .last("limit " + batchSize)
+                .list();
+        //2.移动游标，不满一批说明已到末尾，下次从头开始
+        long next = vouchers.size() < batchSize ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+        stringRedisTemplate.opsForValue().set(SECKILL_RECONCILE_CURSOR_KEY, String.valueOf(next));
+        if (vouchers.isEmpty()) {
+            return 0;
+        }
+        //3.数据库订单数 select voucher_id, count(*) from tb_voucher_order where voucher_id in (...) group by voucher_id
+        Map<Long, Long> dbOrders = countOrders(vouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()));
+        for (SeckillVoucher voucher : vouchers) {
+            check(voucher, dbOrders.getOrDefault(voucher.getVoucherId(), 0L));
+        }
+        return vouchers.size();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("checked", checked.sum());
+        map.put("drifted", drifted.sum());
+        map.put("repaired", repaired.sum());
+        map.put("refused", refused.sum());
+        map.put("staleClaims", staleClaims.sum());
+        map.put("repair", seckillProperties.getReconcile().isRepair());
+        map.put("drifts", new ArrayList<>(drifts.values()));
+        return map;
+    }
+
+    private void check(SeckillVoucher voucher, long dbOrders) {
+        Long voucherId = voucher.getVoucherId();
+        long[] stocks = readStocks(voucherId);
+        if (stocks == null) {
+            //redis中没有库存，不是通过秒杀券接口创建的，跳过
+            return;
+        }
+        checked.increment();
+        clearStaleClaims(voucherId);
+        long redisStock = Arrays.stream(stocks).sum();
+        long redisOrders = countRedisOrders(voucherId);
+        long drift = (voucher.getStock() + dbOrders) - (redisStock + redisOrders);
+        if (drift == 0) {
+            drifts.remove(voucherId);
+            return;
+        }
+        //1.记录偏差，drift > 0 表示redis少卖了，< 0 表示redis多卖了
+        Drift last = drifts.get(voucherId);
+        boolean buyersMissing = redisOrders == 0 && dbOrders > 0;
+        Drift current = new Drift(voucherId, redisStock, redisOrders, voucher.getStock(), dbOrders, drift,
+                buyersMissing, false, System.currentTimeMillis());
+        drifts.put(voucherId, current);
+        drifted.increment();
+        if (buyersMissing) {
+            //下单用户集合丢失，需要先由预热恢复下单用户，不能直接补库存
+            refused.increment();
+            log.error("秒杀下单用户集合丢失, 拒绝自动修复, {}", current);
+            return;
+        }
+        log.warn("秒杀库存不一致, {}", current);
+        //2.连续两次相同的偏差才修复
+        if (seckillProperties.getReconcile().isRepair() && last != null && last.getDrift() == drift) {
+            repair(voucherId, stocks, drift);
+            current.setRepaired(true);
+            repaired.increment();
+        }
+    }
+
+    //以数据库为准调整redis库存：补的按桶平均分，扣的从有库存的桶依次扣
+    private void repair(Long voucherId, long[] stocks, long drift) {
+        if (drift > 0) {
+            int[] adds = seckillPartitioner.splitStock((int) drift);
+            for (int b = 0; b < adds.length; b++) {
+                if (adds[b] > 0) {
+                    stringRedisTemplate.opsForValue().increment(seckillPartitioner.stockKey(voucherId, b), adds[b]);
+                }
+            }
+            seckillSoldOutFlags.clear(voucherId);
+        } else {
+            long remaining = -drift;
+            for (int b = 0; b < stocks.length && remaining > 0; b++) {
+                long take = Math.min(stocks[b], remaining);
+                if (take > 0) {
+                    stringRedisTemplate.opsForValue().decrement(seckillPartitioner.stockKey(voucherId, b), take);
+                    remaining -= take;
+                }
+            }
+            if (remaining > 0) {
+                //redis库存已经不够扣，超卖的部分只能人工处理
+                log.error("秒杀库存修复不完整, voucherId={}, 还差{}", voucherId, remaining);
+            }
+        }
+        log.warn("秒杀库存已修复, voucherId={}, 调整{}", voucherId, drift);
+    }
+
+    //pipeline读取各个库存桶，全部不存在时返回null
+    private long[] readStocks(Long voucherId) {
+        int buckets = seckillPartitioner.buckets();
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int b = 0; b < buckets; b++) {
+                connection.stringCommands().get(seckillPartitioner.stockKey(voucherId, b).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        long[] stocks = new long[buckets];
+        boolean exists = false;
+        for (int b = 0; b < buckets; b++) {
+            Object value = values.get(b);
+            if (value != null) {
+                stocks[b] = Long.parseLong(value.toString());
+                exists = true;
+            }
+        }
+        return exists ? stocks : null;
+    }
+
+    //超过claim-ttl的占位：数据库没有该用户的订单时从下单用户集合移除，有订单的只移除占位记录
+    private void clearStaleClaims(Long voucherId) {
+        long deadline = System.currentTimeMillis() / 1000 - seckillProperties.getReconcile().getClaimTtl().getSeconds();
+        List<Integer> partitions = new ArrayList<>(seckillPartitioner.partitionsOf(voucherId));
+        List<Object> claims = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int p : partitions) {
+                connection.zSetCommands().zRangeByScore(seckillPartitioner.claimKey(p, voucherId).getBytes(StandardCharsets.UTF_8), 0, deadline);
+            }
+            return null;
+        });
+        for (int i = 0; i < partitions.size(); i++) {
+            @SuppressWarnings("unchecked")
+            Set<String> users = (Set<String>) claims.get(i);
+            if (users == null || users.isEmpty()) {
+                continue;
+            }
+            //select user_id from tb_voucher_order where voucher_id = ? and user_id in (...)
+            Set<String> ordered = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                            .select("user_id")
+                            .eq("voucher_id", voucherId)
+                            .in("user_id", users))
+                    .stream().map(Object::toString).collect(Collectors.toSet());
+            String orderKey = seckillPartitioner.orderKey(partitions.get(i), voucherId);
+            String claimKey = seckillPartitioner.claimKey(partitions.get(i), voucherId);
+            for (String userId : users) {
+                if (!ordered.contains(userId)) {
+                    stringRedisTemplate.opsForSet().remove(orderKey, userId);
+                    staleClaims.increment();
+                    log.warn("清理过期的秒杀占位, voucherId={}, userId={}", voucherId, userId);
+                }
+                stringRedisTemplate.opsForZSet().remove(claimKey, userId);
+            }
+        }
+    }
+
+    //各分区下单用户集合的大小之和
+    private long countRedisOrders(Long voucherId) {
+        Set<Integer> partitions = seckillPartitioner.partitionsOf(voucherId);
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int p : partitions) {
+                connection.setCommands().sCard(seckillPartitioner.orderKey(p, voucherId).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        long total = 0;
+        for (Object size : sizes) {
+            total += size == null ? 0 : (Long) size;
+        }
+        return total;
+    }
+
+    private Map<Long, Long> countOrders(List<Long> voucherIds) {
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt")
+                .in("voucher_id", voucherIds)
+                .groupBy("voucher_id"));
+        Map<Long, Long> counts = new HashMap<>(rows.size() * 2);
+        for (Map<String, Object> row : rows) {
+            counts.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("cnt")).longValue());
+        }
+        return counts;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Drift {
+        private Long voucherId;
+        private long redisStock;
+        private long redisOrders;
+        private long dbStock;
+        private long dbOrders;
+        /**
+         * (数据库库存 + 订单数) - (redis库存 + 下单用户数)
+         */
+        private long drift;
+        /**
+         * 数据库有订单而redis中没有下单用户，不会自动修复
+         */
+        private boolean buyersMissing;
+        private boolean repaired;
+        private long checkedAt;
+    }
+}
@@ -1,9 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -12,7 +9,6 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import io.lettuce.core.GeoSearch;
 import org.springframework.data.geo.Distance;
@@ -27,11 +23,10 @@ import javax.annotation.Resource;
 
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -54,14 +49,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Override
     public Result queryById(Long id) {
-        //缓存穿透
-//        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
-
-        //缓存击穿(互斥锁)
-//        Shop shop = queryWithMutex(id);
-
-        //缓存击穿(逻辑过期)
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
+        //缓存击穿(概率提前刷新)，其它策略见CacheClient的queryWithPassThrough、queryWithMutex、queryWithLogicalExpire
+        Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
         if (shop == null) {
             return Result.fail("店铺不存在");
@@ -70,162 +59,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    //封装缓存穿透
-   /* public Shop queryWithPassThrough(Long id) {
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3. 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            //返回错误信息
-            return null;
-        }
-
-
-        //4.不存在，根据id查询数据库
-        Shop shop = this.lambdaQuery().eq(Shop::getId, id).one();
-        //5.数据库中不存在，返回错误
-        if (shop == null) {
-
-            //解决缓存穿透，将空值写入redis
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-
-            return null;
-        }
-        //6.存在，写入redis中
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7.返回商铺信息
-        return shop;
-    }*/
-
-    //封装缓存击穿(互斥锁)
+    //封装缓存击穿(互斥锁)，本节点合并并发请求，跨节点由redis锁协调
     public Shop queryWithMutex(Long id) {
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3. 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            //返回错误信息
-            return null;
-        }
-
-        //实现缓存重建
-        //获取互斥锁
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(LOCK_SHOP_KEY + id);
-            //判断是否获取成功
-            if (!isLock) {
-                //获取失败，则休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //获取成功，根据id查询数据库
-            shop = this.lambdaQuery().eq(Shop::getId, id).one();
-
-            //模拟重建的延时
-            Thread.sleep(200);
-            //5.数据库中不存在，返回错误
-            if (shop == null) {
-
-                //解决缓存穿透，将空值写入redis
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-
-                return null;
-            }
-            //6.存在，写入redis中
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放互斥锁
-            unlock(LOCK_SHOP_KEY + id);
-        }
-        //7.返回商铺信息
-        return shop;
-    }
-
-    //获取锁
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    //释放锁
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-//    //在Shop中加入逻辑过期时间
-/*    public void saveShopToRedis(Long id,Long expireSeconds) throws InterruptedException {
-        //1.查询店铺数据
-        Shop shop = this.lambdaQuery().eq(Shop::getId, id).one();
-        Thread.sleep(100);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
-    }*/
-
-    /*private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-    //封装缓存击穿(逻辑过期方法)
-    public Shop queryWithLogicalExpire(Long id) {
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //2.判断是否存在
-        if (StrUtil.isBlank(shopJson)) {
-            //3. 不存在，直接返回
-            return null;
-        }
-
-        //4.存在，需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //未过期，直接返回
-            return shop;
-        }
-
-        //过期，需要缓存重建
-        //获取互斥锁
-        boolean isLock = tryLock(LOCK_SHOP_KEY + id);
-        //判断是否获取到互斥锁
-        if (isLock) {
-            //获取到，开启新线程实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                //重建缓存
-                try {
-                    this.saveShopToRedis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(LOCK_SHOP_KEY + id);
-                }
-            });
-        }
-        //返回过期的商铺信息
-        return shop;
-    }*/
-
-
     @Override
     @Transactional
     public Result update(Shop shop) {
@@ -235,8 +73,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         this.updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //2.删除缓存，并广播各节点删除本地缓存
+        cacheClient.invalidate(CACHE_SHOP_KEY + shop.getId());
 
         return Result.ok();
     }
@@ -279,12 +117,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        //5. 根据id查询shop
-        String idsStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD( id," + idsStr + ")").list();
-        for (Shop shop : shops) {
+        //5. 根据id批量查询shop，一次MGET，未命中的一次IN查询
+        Map<Long, Shop> shopMap = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> this.listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(shopMap.size());
+        for (Shop cached : shopMap.values()) {
+            //缓存中的对象是共享的，复制一份再设置距离
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             //设置shop的举例属性，从distanceMap中根据shopId查询
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         //6. 返回
         return Result.ok(shops);
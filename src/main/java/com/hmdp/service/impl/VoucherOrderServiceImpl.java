@@ -1,36 +1,32 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderBatchResult;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
-import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.IdGenerators;
+import com.hmdp.utils.LuaScriptRegistry;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillPartitioner;
+import com.hmdp.utils.SeckillSoldOutFlags;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,9 +40,6 @@ import java.util.concurrent.Executors;
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
-    @Resource
-    private ISeckillVoucherService seckillVoucherService;
-
     @Resource
     private RedisIdWorker redisIdWorker;
 
@@ -54,23 +47,29 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private IdGenerators idGenerators;
 
+    @Resource
+    private SeckillAdmission seckillAdmission;
 
-    private ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    //长轮询最多等待的秒数
+    private static final int ORDER_STATUS_MAX_WAIT = 30;
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
 
     /*private BlockingQueue<VoucherOrder> orderTask = new ArrayBlockingQueue<>(1024*1024);
     private class VoucherOrderHandler implements Runnable{
@@ -90,230 +89,198 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    String queueName = "stream.orders";
-
-    private class VoucherOrderHandler implements Runnable {
+    public Result seckillVoucher(Long voucherId) {
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    //1. 获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
-                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            //ReadOffset.lastConsumed()底层就是 '>'
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed()));
-                    //2. 判断消息是否获取成功
-                    if (records == null || records.isEmpty()) {
-                        continue;
-                    }
-                    //3. 消息获取成功之后，我们需要将其转为对象
-                    MapRecord<String, Object, Object> record = records.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4. 获取成功，执行下单逻辑，将数据保存到数据库中
-                    handleVoucherOrder(voucherOrder);
-                    //5. 手动ACK，SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("订单处理异常", e);
-                    //订单异常的处理方式我们封装成一个函数，避免代码太臃肿
-                    handlePendingList();
-                }
-            }
+        //0.本地已标记售罄，直接返回，不访问redis
+        if (seckillSoldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //0.1限流，超出的请求不执行lua脚本
+        if (!seckillAdmission.tryAcquire(voucherId)) {
+            return Result.fail("活动火爆，请稍后再试");
         }
-    }
 
-    private void handlePendingList() {
-        while (true) {
-            try {
-                //1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders 0
-                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1),
-                        StreamOffset.create(queueName, ReadOffset.from("0")));
-                //2. 判断pending-list中是否有未处理消息
-                if (records == null || records.isEmpty()) {
-                    //如果没有就说明没有异常消息，直接结束循环
-                    break;
+        Long userId = UserHolder.getUser().getId();
+        //订单id在lua脚本中扣减库存成功后才生成，这里只准备时间戳和计数器的日期
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = RedisIdWorker.timestamp(now);
+        String date = RedisIdWorker.date(now);
+        //配置为本地生成(snowflake)时不需要访问redis，直接生成后传给脚本
+        IdGenerator idGenerator = idGenerators.get("order");
+        long localOrderId = idGenerator.isLocal() ? idGenerator.nextId("order") : 0;
+
+        //1.执行lua脚本，从用户所在的库存桶开始，依次在各分区尝试，直到下单成功、重复下单或不在秒杀时间内
+        //  下单用户只记录在主分区：主分区没有库存而后面还有分区时先占位，结束时不论成功与否都要移除占位记录，
+        //  没有下单成功(包括后面分区的脚本调用异常)时同时移除下单用户
+        int r = 1;
+        long orderId = localOrderId;
+        boolean claimed = false;
+        String partitions = String.valueOf(seckillPartitioner.partitions());
+        String epochSecond = String.valueOf(System.currentTimeMillis() / 1000);
+        List<SeckillPartitioner.Route> routes = seckillPartitioner.route(voucherId, userId, date);
+        try {
+            for (SeckillPartitioner.Route route : routes) {
+                boolean claim = route.isHome() && routes.size() > 1;
+                List<?> result = luaScriptRegistry.execute(LuaScriptRegistry.SECKILL, List.class,
+                        route.getKeys(),
+                        voucherId.toString(), userId.toString(), String.valueOf(timeStamp),
+                        String.valueOf(route.getPartition()), partitions,
+                        localOrderId == 0 ? "" : String.valueOf(localOrderId), epochSecond,
+                        route.isHome() ? "1" : "0", claim ? "1" : "0");
+                r = ((Long) result.get(0)).intValue();
+                if (r == 0 && localOrderId == 0) {
+                    //1.1下单成功，脚本返回序列号，拼接成订单id
+                    orderId = RedisIdWorker.compose(timeStamp, (Long) result.get(1));
                 }
-                //3. 消息获取成功之后，我们需要将其转为对象
-                MapRecord<String, Object, Object> record = records.get(0);
-                Map<Object, Object> values = record.getValue();
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                //4. 获取成功，执行下单逻辑，将数据保存到数据库中
-                handleVoucherOrder(voucherOrder);
-                //5. 手动ACK，SACK stream.orders g1 id
-                stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-            } catch (Exception e) {
-                log.info("处理pending-list异常");
-                //如果怕异常多次出现，可以在这里休眠一会儿
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                    throw new RuntimeException(ex);
+                if (r == 1 && claim) {
+                    claimed = true;
+                }
+                if (r != 1) {
+                    break;
                 }
             }
-        }
-    }
-
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-//        SimpleRedisLock simpleRedisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-
-        //获取锁
-        boolean isLock = lock.tryLock();
-
-        //判断是否获取锁成功
-        if (!isLock) {
-            //获取锁失败
-            log.error("不允许重复下单");
-            return;
-        }
-        try {
-            //获取代理对象(事务)
-            proxy.createVoucherOrder(voucherOrder);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
         } finally {
-            lock.unlock();
+            //后面分区的脚本调用异常时r仍为主分区返回的1
+            if (claimed) {
+                releaseClaim(voucherId, userId, r == 0);
+            }
         }
-    }
-
-    IVoucherOrderService proxy;
-
-    public Result seckillVoucher(Long voucherId) {
-
-        Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
         //2.判断结果是否为0
-        int r = result.intValue();
+        if (r == 1) {
+            //所有分区都已售完，标记售罄并通知其它节点
+            seckillSoldOutFlags.markSoldOut(voucherId);
+        }
+        if (r == 3) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (r == 4) {
+            return Result.fail("秒杀已经结束");
+        }
         if (r != 0) {
             //2.1不为0，没有购买资格
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4.返回订单id
+        //3.记录订单状态为排队中，返回订单id，订单由SeckillOrderConsumer异步写入数据库
+        orderStatusTracker.queued(orderId, userId, voucherId);
         return Result.ok(orderId);
     }
 
-    /*@Override
-    public Result seckillVoucher(Long voucherId) {
+    //1.2移除主分区的占位记录，没有下单成功时同时移除下单用户；移除失败的由对账任务按占位时间清理
+    private void releaseClaim(Long voucherId, Long userId, boolean ordered) {
+        try {
+            if (!ordered) {
+                stringRedisTemplate.opsForSet().remove(seckillPartitioner.buyerKey(voucherId, userId), userId.toString());
+            }
+            stringRedisTemplate.opsForZSet().remove(seckillPartitioner.homeClaimKey(voucherId, userId), userId.toString());
+        } catch (Exception e) {
+            log.error("移除秒杀占位失败, voucherId={}, userId={}", voucherId, userId, e);
+        }
+    }
 
+    @Override
+    public CompletableFuture<Result> queryOrderStatus(Long orderId, int timeoutSec) {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(timeoutSec, ORDER_STATUS_MAX_WAIT)));
         Long userId = UserHolder.getUser().getId();
-
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString());
-        //2.判断结果是否为0
-        int r = result.intValue();
-        if (r != 0) {
-            //2.1不为0，没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        //1.查询redis中的状态
+        Map<Object, Object> status = orderStatusTracker.get(orderId);
+        if (status.isEmpty()) {
+            //1.1状态已过期或还没写入，回退到数据库
+            VoucherOrder voucherOrder = getById(orderId);
+            if (voucherOrder == null || !voucherOrder.getUserId().equals(userId)) {
+                return CompletableFuture.completedFuture(Result.fail("订单不存在"));
+            }
+            Map<String, Object> persisted = new HashMap<>(4);
+            persisted.put("status", OrderStatusTracker.PERSISTED);
+            persisted.put("voucherId", voucherOrder.getVoucherId());
+            return CompletableFuture.completedFuture(Result.ok(persisted));
         }
-
-        //2.2为0，有购买资格，把下单信息保存到阻塞队列中
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //2.3订单id
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        //2.4用户id
-        voucherOrder.setUserId(userId);
-        //2.5代金券id
-        voucherOrder.setVoucherId(voucherId);
-
-        //2.6 加入阻塞队列
-        orderTask.add(voucherOrder);
-
-        //3.获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4.返回订单id
-        return Result.ok(orderId);
-    }*/
-
-    /*@Override
-    public Result seckillVoucher(Long voucherId) {
-        //1.查询
-        SeckillVoucher voucher = seckillVoucherService.lambdaQuery().eq(SeckillVoucher::getVoucherId, voucherId).one();
-
-        //2.判断秒杀是否开始
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            //尚未开始
-            return Result.fail("秒杀尚未开始");
+        //2.只能查询自己的订单
+        if (!userId.toString().equals(status.get("userId"))) {
+            return CompletableFuture.completedFuture(Result.fail("订单不存在"));
         }
-
-        //3.判断秒杀是否充足
-        if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
-            //已结束
-            return Result.fail("秒杀已结束");
+        //3.已是终态或不等待时直接返回
+        if (OrderStatusTracker.isFinal(status) || timeoutMillis == 0) {
+            return CompletableFuture.completedFuture(Result.ok(status));
         }
+        //4.长轮询，状态变化时由pub/sub通知唤醒，超时返回当前状态
+        return orderStatusTracker.await(orderId, timeoutMillis).thenApply(s -> Result.ok(s));
+    }
 
-        //4.判断库存是否充足
-        if (voucher.getStock() < 1) {
-            return Result.fail("库存不足");
+    @Override
+    @Transactional
+    public OrderBatchResult createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        OrderBatchResult result = new OrderBatchResult();
+        if (voucherOrders.isEmpty()) {
+            return result;
         }
-
-        Long userId = UserHolder.getUser().getId();
-
-        //创建锁对象
-//        SimpleRedisLock simpleRedisLock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-
-        //获取锁
-        boolean isLock = lock.tryLock();
-
-        //判断是否获取锁成功
-        if (!isLock) {
-            //获取锁失败
-            return Result.fail("不允许重复下单");
+        //1.去掉批次内同一用户对同一代金券的重复订单
+        Map<String, VoucherOrder> candidates = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (candidates.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder) != null) {
+                result.getDuplicates().add(voucherOrder);
+            }
         }
-        try {
-            //获取代理对象(事务)
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createVoucherOrder(voucherId);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
-        } finally {
-            lock.unlock();
+        //2.插入前已经存在的订单id，是重复投递的消息，之前已经扣过库存
+        Set<Long> ids = candidates.values().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Set<Long> existing = selectExistingIds(ids);
+        List<VoucherOrder> toInsert = new ArrayList<>(candidates.size());
+        for (VoucherOrder voucherOrder : candidates.values()) {
+            (existing.contains(voucherOrder.getId()) ? result.getRedelivered() : toInsert).add(voucherOrder);
         }
-    }*/
-
-    @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //5.一人一单
-        //5.1查询订单
-        Long userId = voucherOrder.getUserId();
-        //5.2判断是否存在
-        Long count = this.lambdaQuery()
-                .eq(VoucherOrder::getUserId, userId)
-                .eq(VoucherOrder::getVoucherId, voucherOrder.getVoucherId()).count();
-        if (count > 0) {
-            //用户已经购买过了
-            log.error("用户已经购买过一次了");
-            return;
+        if (toInsert.isEmpty()) {
+            logDuplicates(result);
+            return result;
         }
 
-        //6.扣减库存
-        boolean success = seckillVoucherService.lambdaUpdate()
-                .setSql("stock = stock - 1")
-                .eq(SeckillVoucher::getVoucherId, voucherOrder.getVoucherId())
-                .gt(SeckillVoucher::getStock, 0).update();
+        //3.INSERT IGNORE多行插入，唯一索引冲突的跳过；有跳过的行时再查询一次，找出实际插入的订单
+        int rows = getBaseMapper().insertIgnoreBatch(toInsert);
+        List<VoucherOrder> inserted = toInsert;
+        if (rows < toInsert.size()) {
+            Set<Long> insertedIds = selectExistingIds(toInsert.stream().map(VoucherOrder::getId).collect(Collectors.toSet()));
+            inserted = new ArrayList<>(rows);
+            for (VoucherOrder voucherOrder : toInsert) {
+                (insertedIds.contains(voucherOrder.getId()) ? inserted : result.getDuplicates()).add(voucherOrder);
+            }
+        }
 
-        if (!success) {
-            log.error("库存不足");
-            return;
+        //4.按代金券分组，每个代金券按实际插入的数量扣减一次库存
+        Map<Long, List<VoucherOrder>> byVoucher = inserted.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            int count = orders.size();
+            if (seckillVoucherMapper.decreaseStock(voucherId, count) == 0) {
+                //4.1库存不够整批，加锁查询剩余库存，按剩余数量接受，多插入的订单删除
+                Integer stock = seckillVoucherMapper.selectStockForUpdate(voucherId);
+                count = stock == null ? 0 : Math.min(stock, count);
+                if (count > 0) {
+                    seckillVoucherMapper.decreaseStock(voucherId, count);
+                }
+                List<VoucherOrder> rejected = orders.subList(count, orders.size());
+                removeByIds(rejected.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+                result.getSoldOut().addAll(rejected);
+                log.error("库存不足, voucherId={}, 丢弃{}个订单", voucherId, rejected.size());
+            }
+            result.getAccepted().addAll(orders.subList(0, count));
         }
+        logDuplicates(result);
+        return result;
+    }
 
-        //7.创建订单，并存入数据库
-        this.save(voucherOrder);
+    //select id from tb_voucher_order where id in (...)
+    private Set<Long> selectExistingIds(Set<Long> ids) {
+        return this.lambdaQuery()
+                .select(VoucherOrder::getId)
+                .in(VoucherOrder::getId, ids)
+                .list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+    }
+
+    private void logDuplicates(OrderBatchResult result) {
+        for (VoucherOrder voucherOrder : result.getDuplicates()) {
+            log.error("用户已经购买过一次了, userId={}, voucherId={}, orderId={}",
+                    voucherOrder.getUserId(), voucherOrder.getVoucherId(), voucherOrder.getId());
+        }
     }
 }
@@ -1,20 +1,27 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillPartitioner;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.List;
-
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -33,6 +40,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
+
+    @Resource
+    private SeckillSoldOutFlags seckillSoldOutFlags;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -54,7 +70,94 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //保存库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //保存库存到redis中，按桶拆分
+        int[] stocks = seckillPartitioner.splitStock(voucher.getStock());
+        for (int b = 0; b < stocks.length; b++) {
+            stringRedisTemplate.opsForValue().set(seckillPartitioner.stockKey(voucher.getId(), b), String.valueOf(stocks[b]));
+        }
+        //保存秒杀时间窗口，由lua脚本校验
+        saveSeckillWindow(seckillVoucher);
+        //同一个id之前可能被标记为售罄
+        seckillSoldOutFlags.clear(voucher.getId());
+    }
+
+    @Override
+    @Transactional
+    public boolean restockSeckillVoucher(Long voucherId, int count) {
+        //1.增加数据库库存
+        boolean success = seckillVoucherService.lambdaUpdate()
+                .setSql("stock = stock + " + count)
+                .eq(SeckillVoucher::getVoucherId, voucherId)
+                .update();
+        if (!success) {
+            return false;
+        }
+        //2.增加的库存按桶拆分，加到redis中
+        int[] stocks = seckillPartitioner.splitStock(count);
+        for (int b = 0; b < stocks.length; b++) {
+            if (stocks[b] > 0) {
+                stringRedisTemplate.opsForValue().increment(seckillPartitioner.stockKey(voucherId, b), stocks[b]);
+            }
+        }
+        //3.清除售罄标记
+        seckillSoldOutFlags.clear(voucherId);
+        return true;
+    }
+
+    @Override
+    public boolean preheatSeckillVoucher(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        //1.时间窗口以数据库为准，每次覆盖
+        saveSeckillWindow(seckillVoucher);
+        //2.库存桶全部不存在时才按数据库库存加载，已有的库存可能正在被扣减，不能覆盖
+        List<String> keys = new ArrayList<>(seckillPartitioner.buckets());
+        for (int b = 0; b < seckillPartitioner.buckets(); b++) {
+            keys.add(seckillPartitioner.stockKey(voucherId, b));
+        }
+        Long existing = stringRedisTemplate.countExistingKeys(keys);
+        if (existing != null && existing > 0) {
+            return false;
+        }
+        //3.先按已有订单恢复下单用户集合，再加载库存，否则已购买的用户可以再次下单
+        restoreBuyers(voucherId);
+        int[] stocks = seckillPartitioner.splitStock(seckillVoucher.getStock());
+        for (int b = 0; b < stocks.length; b++) {
+            stringRedisTemplate.opsForValue().setIfAbsent(keys.get(b), String.valueOf(stocks[b]));
+        }
+        return true;
+    }
+
+    //select user_id from tb_voucher_order where voucher_id = ?，SADD到各用户主分区的下单用户集合
+    private void restoreBuyers(Long voucherId) {
+        List<Object> userIds = voucherOrderMapper.selectObjs(Wrappers.<VoucherOrder>lambdaQuery()
+                .select(VoucherOrder::getUserId)
+                .eq(VoucherOrder::getVoucherId, voucherId));
+        if (userIds.isEmpty()) {
+            return;
+        }
+        Map<String, List<byte[]>> buyers = new HashMap<>();
+        for (Object userId : userIds) {
+            long id = ((Number) userId).longValue();
+            buyers.computeIfAbsent(seckillPartitioner.buyerKey(voucherId, id), k -> new ArrayList<>())
+                    .add(String.valueOf(id).getBytes(StandardCharsets.UTF_8));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            buyers.forEach((key, members) -> connection.setCommands()
+                    .sAdd(key.getBytes(StandardCharsets.UTF_8), members.toArray(new byte[0][])));
+            return null;
+        });
+    }
+
+    //seckill:window:{p}:voucherId begin end，每个有库存桶的分区一份，与库存在同一个slot，结束一天后过期
+    private void saveSeckillWindow(SeckillVoucher seckillVoucher) {
+        Map<String, String> window = new HashMap<>(4);
+        long end = seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toEpochSecond();
+        window.put("begin", String.valueOf(seckillVoucher.getBeginTime().atZone(ZoneId.systemDefault()).toEpochSecond()));
+        window.put("end", String.valueOf(end));
+        for (int p : seckillPartitioner.partitionsOf(seckillVoucher.getVoucherId())) {
+            String key = seckillPartitioner.windowKey(p, seckillVoucher.getVoucherId());
+            stringRedisTemplate.opsForHash().putAll(key, window);
+            stringRedisTemplate.expireAt(key, new Date(TimeUnit.SECONDS.toMillis(end) + TimeUnit.DAYS.toMillis(1)));
+        }
     }
 }
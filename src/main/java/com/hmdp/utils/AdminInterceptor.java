@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 运维接口拦截器：请求头 X-Admin-Token 必须与配置的 hmdp.admin.token 一致，
+ * 没有配置token时运维接口全部关闭
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+
+    private final byte[] token;
+
+    public AdminInterceptor(String token) {
+        this.token = StrUtil.isBlank(token) ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String header = request.getHeader(TOKEN_HEADER);
+        //未配置token或token不一致，拒绝
+        if (token == null || header == null
+                || !MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8))) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
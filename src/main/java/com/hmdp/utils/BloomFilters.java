@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 防缓存穿透的布隆过滤器，按缓存key前缀区分，未注册过滤器的前缀不做拦截
+ * 判断只查本地镜像，其它节点新增的元素通过 bloom:added 广播同步，并定期从redis拉取bitmap
+ */
+@Slf4j
+@Component
+public class BloomFilters {
+
+    private static final int REBUILD_BATCH_SIZE = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private BlogMapper blogMapper;
+
+    @Resource
+    private UserMapper userMapper;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //spring boot自动配置的任务线程池
+    @Resource
+    private ThreadPoolTaskExecutor applicationTaskExecutor;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    //缓存key前缀 -> 过滤器
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+
+    //过滤器名称 -> 过滤器，用于处理广播
+    private final Map<String, RedisBloomFilter> filtersByName = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        register(CACHE_SHOP_KEY, new RedisBloomFilter("shop", expectedInsertions, fpp, stringRedisTemplate));
+        register(CACHE_BLOG_KEY, new RedisBloomFilter("blog", expectedInsertions, fpp, stringRedisTemplate));
+        register(CACHE_USER_KEY, new RedisBloomFilter("user", expectedInsertions, fpp, stringRedisTemplate));
+        //其它节点新增的元素，消息格式 name:value
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            RedisBloomFilter filter = index < 0 ? null : filtersByName.get(body.substring(0, index));
+            if (filter != null) {
+                filter.addLocal(body.substring(index + 1));
+            }
+        }, new ChannelTopic(BLOOM_ADDED_CHANNEL));
+    }
+
+    //启动完成后在任务线程池中重建，重建完成前过滤器放行所有请求
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        applicationTaskExecutor.execute(() -> {
+            rebuild(CACHE_SHOP_KEY, shopMapper);
+            rebuild(CACHE_BLOG_KEY, blogMapper);
+            rebuild(CACHE_USER_KEY, userMapper);
+        });
+    }
+
+    /**
+     * 定期从redis拉取bitmap，补上订阅断开期间错过的广播
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.refresh-interval:300000}")
+    public void refresh() {
+        for (RedisBloomFilter filter : filters.values()) {
+            try {
+                filter.refresh();
+            } catch (Exception e) {
+                log.error("布隆过滤器同步失败, name={}", filter.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        return filter == null || filter.mightContain(id.toString());
+    }
+
+    /**
+     * 新增数据后登记id
+     */
+    public void add(String keyPrefix, Object id) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.add(id.toString());
+        }
+    }
+
+    private void register(String keyPrefix, RedisBloomFilter filter) {
+        filters.put(keyPrefix, filter);
+        filtersByName.put(filter.getName(), filter);
+    }
+
+    private <T> void rebuild(String keyPrefix, BaseMapper<T> mapper) {
+        try {
+            long begin = System.currentTimeMillis();
+            filters.get(keyPrefix).rebuild(sink -> scanIds(mapper, sink));
+            log.info("布隆过滤器重建完成, prefix={}, 耗时{}ms", keyPrefix, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("布隆过滤器重建失败, prefix={}", keyPrefix, e);
+        }
+    }
+
+    //按主键分批扫描全表id select id from t where id > ? order by id limit ?
+    private <T> void scanIds(BaseMapper<T> mapper, Consumer<String> sink) {
+        long lastId = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + REBUILD_BATCH_SIZE));
+            for (Object id : ids) {
+                sink.accept(id.toString());
+            }
+            if (ids.size() < REBUILD_BATCH_SIZE) {
+                return;
+            }
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+}
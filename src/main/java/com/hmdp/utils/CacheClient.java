@@ -1,20 +1,26 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -22,57 +28,485 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 public class CacheClient {
 
+    //缓存穿透的空值标记
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    //还没有重建耗时记录时使用的默认值，单位毫秒
+    private static final double DEFAULT_RECOMPUTE_MILLIS = 50;
+
     @Resource
     private  StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private BloomFilters bloomFilters;
+
+    @Resource
+    private CacheCodecs cacheCodecs;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    //本节点的标识，失效广播带上发送者，本节点发出的广播不再处理，避免删掉刚写入的本地缓存
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    //本地一级缓存，key为前缀
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+
+    //热点key的本地固定缓存，不区分前缀
+    private Cache<String, Object> pinnedCache;
+
+    //分层命中统计，key为前缀
+    private final Map<String, CacheTierStats> tierStats = new ConcurrentHashMap<>();
+
+    //进行中的数据库加载，本节点同一个key的并发请求共享同一个future
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    //等待其它节点重建完成的请求，收到重建完成广播时唤醒
+    private final Map<String, CompletableFuture<Void>> remoteWaiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        //1.按key前缀构建本地缓存
+        for (CacheProperties.LocalCacheSpec spec : cacheProperties.getLocal()) {
+            localCaches.put(spec.getPrefix(), Caffeine.newBuilder()
+                    .maximumSize(spec.getMaximumSize())
+                    .expireAfterWrite(spec.getExpireAfterWrite())
+                    .build());
+        }
+        pinnedCache = Caffeine.newBuilder()
+                .maximumSize(cacheProperties.getHotKey().getMaxHotKeys())
+                .expireAfterWrite(cacheProperties.getHotKey().getPinTtl())
+                .build();
+        //2.订阅失效广播，任意节点更新数据后其它节点删除本地缓存，消息格式 nodeId:key
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            if (index > 0 && !nodeId.equals(body.substring(0, index))) {
+                invalidateLocal(body.substring(index + 1));
+            }
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //3.订阅重建完成广播，唤醒等待其它节点重建的请求
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiter = remoteWaiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        }, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
     public void set(String key , Object value, Long time, TimeUnit unit){
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, cacheCodecs.forWrite(key).encode(value), unit.toSeconds(time));
 
     }
 
     public void setWithLogicalExpire(String key , Object value, Long time, TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        //设置逻辑过期，写入redis
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        setRaw(key, LogicalEnvelope.wrap(cacheCodecs.forWrite(key), value, expireMillis), 0);
+    }
+
+    /**
+     * 批量写入带逻辑过期时间的数据，TTL与逻辑过期时间一致，通过pipeline一次完成
+     * 已存在的key不覆盖，用于预热
+     */
+    public void setAllIfAbsentWithExpiry(Map<String, ?> values, Long time, TimeUnit unit) {
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        Expiration expiration = Expiration.seconds(unit.toSeconds(time));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                byte[] rawKey = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = LogicalEnvelope.wrap(cacheCodecs.forWrite(entry.getKey()), entry.getValue(), expireMillis);
+                connection.stringCommands().set(rawKey, value, expiration, RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 判断逻辑过期的缓存是否需要重建，只读取定长头部，不传输和解析数据
+     * @return 不存在或已过期返回true
+     */
+    public boolean isLogicallyExpired(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().getRange(rawKey, 0, LogicalEnvelope.HEADER_LENGTH - 1));
+        if (header == null || header.length == 0) {
+            return true;
+        }
+        if (LogicalEnvelope.isEnvelope(header)) {
+            return LogicalEnvelope.expireMillis(header) <= System.currentTimeMillis();
+        }
+        //历史格式没有定长头部，需要读取完整数据
+        byte[] bytes = getRaw(key);
+        return bytes == null || bytes.length == 0
+                || cacheCodecs.decodeLogical(bytes, Object.class).getExpireMillis() <= System.currentTimeMillis();
+    }
+
+    /**
+     * 删除缓存，并广播给所有节点删除本地缓存
+     * @param key 缓存key
+     */
+    public void invalidate(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        publishInvalidate(key);
+    }
+
+    //通知其它节点删除本地缓存，本节点的本地缓存由调用方处理
+    private void publishInvalidate(String key) {
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, nodeId + ":" + key);
+    }
+
+    private void invalidateLocal(String key) {
+        pinnedCache.invalidate(key);
+        for (Map.Entry<String, Cache<String, Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * 各key前缀的分层命中统计
+     */
+    public Map<String, Map<String, Long>> stats() {
+        Map<String, Map<String, Long>> map = new LinkedHashMap<>();
+        tierStats.forEach((prefix, stats) -> map.put(prefix, stats.snapshot()));
+        return map;
+    }
+
+    private CacheTierStats statsOf(String keyPrefix) {
+        return tierStats.computeIfAbsent(keyPrefix, k -> new CacheTierStats());
+    }
+
+    //从本地缓存读取，未配置本地缓存的前缀直接返回null
+    @SuppressWarnings("unchecked")
+    private <R> R getLocal(String keyPrefix, String key) {
+        Object value = getLocalEntry(keyPrefix, key);
+        //逻辑过期方法写入的是带过期时间的数据
+        return (R) (value instanceof LogicalValue ? ((LogicalValue<?>) value).getData() : value);
+    }
+
+    private Object getLocalEntry(String keyPrefix, String key) {
+        //热点key先查固定缓存
+        if (hotKeyDetector.record(key)) {
+            Object pinned = pinnedCache.getIfPresent(key);
+            if (pinned != null) {
+                statsOf(keyPrefix).localHit();
+                return pinned;
+            }
+        }
+        Cache<String, Object> cache = localCaches.get(keyPrefix);
+        if (cache == null) {
+            return null;
+        }
+        Object value = cache.getIfPresent(key);
+        if (value == null) {
+            statsOf(keyPrefix).localMiss();
+            return null;
+        }
+        statsOf(keyPrefix).localHit();
+        return value;
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        if (value == null) {
+            return;
+        }
+        Cache<String, Object> cache = localCaches.get(keyPrefix);
+        if (cache != null) {
+            cache.put(key, value);
+        }
+        if (hotKeyDetector.isHot(key)) {
+            pinnedCache.put(key, value);
+        }
+    }
+
+    //按字节读取，编码格式由数据头部决定
+    private byte[] getRaw(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    //按字节写入，seconds<=0表示不设置过期时间
+    private void setRaw(String key, byte[] value, long seconds) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = seconds > 0 ? Expiration.seconds(seconds) : Expiration.persistent();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.stringCommands().set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
     }
 
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit) {
-        //1.从redis查询商铺缓存
+        //布隆过滤器判断不存在，直接返回，不访问redis和数据库
+        if (!bloomFilters.mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return local;
+        }
+        //1.从redis查询商铺缓存
+        byte[] bytes = getRaw(key);
         //2.判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            //3. 存在，直接返回
-            return JSONUtil.toBean(json,type);
+        if (bytes != null) {
+            //3. 存在，直接返回，命中空值时返回null
+            statsOf(keyPrefix).redisHit();
+            return decodeOrNull(keyPrefix, key, bytes, type);
         }
+        statsOf(keyPrefix).redisMiss();
+
+        //4.不存在，根据id查询数据库，本节点并发的请求只查询一次
+        return singleFlight(key, () -> loadAndCache(keyPrefix, id, dbFallback, time, unit, false));
+    }
 
-        //判断命中的是否是空值
-        if (json != null) {
-            //返回错误信息
+    /**
+     * 批量查询，一次MGET读取缓存，未命中的id合并为一次数据库查询，回写通过pipeline一次完成
+     * @param dbFallback 入参为未命中的id集合，返回查到的 id -> 数据，查不到的id不放入map
+     * @return 按ids顺序排列的 id -> 数据，不存在的id不包含在内
+     */
+    public <R,ID> Map<ID,R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                     Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> hits = new HashMap<>(ids.size());
+        //1.先查本地缓存
+        List<ID> redisIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilters.mightContain(keyPrefix, id)) {
+                //布隆过滤器判断不存在
+                continue;
+            }
+            R local = getLocal(keyPrefix, keyPrefix + id);
+            if (local != null) {
+                hits.put(id, local);
+            } else {
+                redisIds.add(id);
+            }
+        }
+        //2.MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            byte[][] rawKeys = new byte[redisIds.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = (keyPrefix + redisIds.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(rawKeys));
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null) {
+                    //未命中
+                    statsOf(keyPrefix).redisMiss();
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                statsOf(keyPrefix).redisHit();
+                //命中空值的直接跳过
+                R r = decodeOrNull(keyPrefix, keyPrefix + redisIds.get(i), bytes, type);
+                if (r != null) {
+                    hits.put(redisIds.get(i), r);
+                }
+            }
+        }
+        //3.未命中的id一次性查询数据库，并通过pipeline回写redis
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            Expiration expiration = Expiration.seconds(unit.toSeconds(time));
+            Expiration nullExpiration = Expiration.seconds(TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+            CacheCodec codec = cacheCodecs.forWrite(keyPrefix);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        //解决缓存穿透，将空值写入redis
+                        connection.stringCommands().set(rawKey, NULL_VALUE, nullExpiration, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.stringCommands().set(rawKey, codec.encode(r), expiration, RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                if (r != null) {
+                    hits.put(id, r);
+                    putLocal(keyPrefix, keyPrefix + id, r);
+                }
+            }
+        }
+        //4.按入参顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(hits.size());
+        for (ID id : ids) {
+            R r = hits.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 互斥锁解决缓存击穿：本节点内通过single-flight合并请求，redis锁只用于协调多个节点，
+     * 没抢到锁的节点等待重建完成的广播，而不是休眠轮询
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        //布隆过滤器判断不存在，直接返回
+        if (!bloomFilters.mightContain(keyPrefix, id)) {
             return null;
         }
+        String key = keyPrefix + id;
+        //1.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null) {
+            return local;
+        }
+        //2.从redis查询
+        byte[] bytes = getRaw(key);
+        if (bytes != null) {
+            statsOf(keyPrefix).redisHit();
+            return decodeOrNull(keyPrefix, key, bytes, type);
+        }
+        statsOf(keyPrefix).redisMiss();
+        //3.未命中，本节点只有一个请求去重建，其余请求等待它的结果
+        return singleFlight(key, () -> rebuildWithLock(keyPrefix, id, type, dbFallback, time, unit));
+    }
 
+    private <R,ID> R rebuildWithLock(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = LOCK_SHOP_KEY + id;
+        //先登记等待，避免抢锁失败后才登记而错过广播
+        CompletableFuture<Void> landed = remoteWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            //1.获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    //2.获取成功，再次检查缓存，可能刚被其它节点重建
+                    byte[] bytes = getRaw(key);
+                    if (bytes != null) {
+                        return decodeOrNull(keyPrefix, key, bytes, type);
+                    }
+                    return loadAndCache(keyPrefix, id, dbFallback, time, unit, true);
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            //3.其它节点正在重建，检查一次后等待重建完成的广播
+            byte[] bytes = getRaw(key);
+            if (bytes == null) {
+                try {
+                    landed.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    log.warn("等待缓存重建超时, key={}", key);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                bytes = getRaw(key);
+            }
+            if (bytes != null) {
+                return decodeOrNull(keyPrefix, key, bytes, type);
+            }
+            //4.持有锁的节点没有写入(例如宕机)，自己查询数据库
+            return loadAndCache(keyPrefix, id, dbFallback, time, unit, true);
+        } finally {
+            remoteWaiters.remove(key, landed);
+        }
+    }
 
-        //4.不存在，根据id查询数据库
-        R r  = dbFallback.apply(id);
-        //5.数据库中不存在，返回错误
+    //查询数据库并写入缓存，notify为true时写入后广播重建完成，只有互斥锁方式会有其它节点在等待
+    private <R,ID> R loadAndCache(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit, boolean notify) {
+        String key = keyPrefix + id;
+        //1.根据id查询数据库
+        R r = timedLoad(keyPrefix, id, dbFallback);
         if (r == null) {
+            //2.数据库中不存在，解决缓存穿透，将空值写入redis
+            setRaw(key, NULL_VALUE, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+        } else {
+            //3.存在，写入redis中
+            this.set(key, r, time, unit);
+            putLocal(keyPrefix, key, r);
+        }
+        if (notify) {
+            stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+        }
+        return r;
+    }
 
-            //解决缓存穿透，将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+    //查询数据库，并记录该前缀的重建耗时
+    private <R,ID> R timedLoad(String keyPrefix, ID id, Function<ID,R> dbFallback) {
+        long begin = System.nanoTime();
+        try {
+            return dbFallback.apply(id);
+        } finally {
+            statsOf(keyPrefix).recordRecompute(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        }
+    }
 
+    //空值是缓存穿透的标记
+    private <R> R decodeOrNull(String keyPrefix, String key, byte[] bytes, Class<R> type) {
+        if (bytes.length == 0) {
             return null;
         }
-        //6.存在，写入redis中
-        this.set(key,r,time,unit);
-        //7.返回商铺信息
+        R r = cacheCodecs.decode(bytes, type);
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
+    /**
+     * 同一个key同一时刻只执行一次loader，其它并发调用者直接等待并共享结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //已有请求在加载，等待其结果
+            try {
+                return (R) existing.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        R r = null;
+        Throwable failure = null;
+        try {
+            r = loader.get();
+            return r;
+        } catch (Throwable t) {
+            //包括Error和未声明的受检异常，都要传给等待者
+            failure = t;
+            throw t;
+        } finally {
+            //无论成功失败都完成future，等待者不会一直阻塞
+            if (failure == null) {
+                future.complete(r);
+            } else {
+                future.completeExceptionally(failure);
+            }
+            inFlight.remove(key, future);
+        }
+    }
+
     //获取锁
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
@@ -84,51 +518,157 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //封装缓存击穿(逻辑过期方法)
+    @SuppressWarnings("unchecked")
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit) {
-        //1.从redis查询商铺缓存
-        String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            //3. 存在，直接返回
+        //布隆过滤器判断不存在，直接返回
+        if (!bloomFilters.mightContain(keyPrefix, id)) {
             return null;
         }
-
-        //4.存在，需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        String key = keyPrefix + id;
+        long now = System.currentTimeMillis();
+        LogicalValue<R> value;
+        //0.先查本地缓存，本地缓存保存了过期时间，判断过期不需要访问redis
+        Object local = getLocalEntry(keyPrefix, key);
+        if (local instanceof LogicalValue) {
+            value = (LogicalValue<R>) local;
+        } else if (local != null) {
+            //其它方法写入的数据没有逻辑过期时间，本地缓存存活时间很短，直接返回
+            return (R) local;
+        } else {
+            //1.从redis查询商铺缓存
+            byte[] bytes = getRaw(key);
+            //2.判断是否存在
+            if (bytes == null || bytes.length == 0) {
+                //3. 不存在，直接返回
+                statsOf(keyPrefix).redisMiss();
+                return null;
+            }
+            statsOf(keyPrefix).redisHit();
+            //4.存在，过期时间在定长头部中，数据只解析一次
+            value = cacheCodecs.decodeLogical(bytes, type);
+            putLocal(keyPrefix, key, value);
+        }
+        R r = value.getData();
         //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if(value.getExpireMillis() > now){
             //未过期，直接返回
             return r;
         }
 
         //过期，需要缓存重建
+        //本节点已有重建任务，只记录一次访问提高其优先级
+        if (cacheRebuildExecutor.touch(key)) {
+            return r;
+        }
         //获取互斥锁
-        boolean isLock = tryLock(LOCK_SHOP_KEY + id);
+        String lockKey = LOCK_SHOP_KEY + id;
+        boolean isLock = tryLock(lockKey);
         //判断是否获取到互斥锁
         if (isLock) {
-            //获取到，开启新线程实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            //获取到，提交到重建线程池，任务被丢弃或合并到已有任务时立即释放锁
+            boolean accepted = cacheRebuildExecutor.submit(key, () -> {
                 //重建缓存
                 try {
+                    //其它节点可能刚刚重建完成，只读取头部确认
+                    if (!isLogicallyExpired(key)) {
+                        invalidateLocal(key);
+                        return;
+                    }
                     //查询数据库
-                    R rl = dbFallback.apply(id);
+                    R rl = timedLoad(keyPrefix, id, dbFallback);
                     //写入redis
                     this.setWithLogicalExpire(key,rl,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
+                    //通知各节点丢弃旧的本地缓存
+                    invalidateLocal(key);
+                    publishInvalidate(key);
+                } finally {
                     //释放锁
-                    unlock(LOCK_SHOP_KEY + id);
+                    unlock(lockKey);
                 }
-            });
+            }, () -> unlock(lockKey));
+            if (!accepted) {
+                log.debug("缓存重建任务未提交, key={}", key);
+            }
         }
         //返回过期的商铺信息
         return r;
     }
+
+    /**
+     * 概率提前刷新(XFetch)：数据同时带有逻辑过期时间和相同的TTL，每次命中时按
+     * now - 重建耗时 * beta * ln(random) >= 过期时间 判断是否在后台提前重建。
+     * 剩余时间越短、重建越慢，越可能提前刷新，因此访问频繁的key在过期前就会被刷新，冷key则自然过期
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        //布隆过滤器判断不存在，直接返回
+        if (!bloomFilters.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        LogicalValue<R> value;
+        //1.先查本地缓存
+        Object local = getLocalEntry(keyPrefix, key);
+        if (local instanceof LogicalValue) {
+            value = (LogicalValue<R>) local;
+        } else if (local != null) {
+            return (R) local;
+        } else {
+            //2.从redis查询
+            byte[] bytes = getRaw(key);
+            if (bytes == null) {
+                //3.已过期或不存在，本节点并发的请求只查询一次数据库
+                statsOf(keyPrefix).redisMiss();
+                return singleFlight(key, () -> loadWithExpiry(keyPrefix, id, dbFallback, time, unit));
+            }
+            statsOf(keyPrefix).redisHit();
+            if (bytes.length == 0) {
+                //命中空值
+                return null;
+            }
+            value = cacheCodecs.decodeLogical(bytes, type);
+            putLocal(keyPrefix, key, value);
+        }
+        //4.按概率决定是否提前刷新，刷新在后台进行，本次直接返回缓存数据
+        if (shouldRefreshEarly(keyPrefix, value.getExpireMillis())) {
+            refreshInBackground(keyPrefix, id, dbFallback, time, unit);
+        }
+        return value.getData();
+    }
+
+    private boolean shouldRefreshEarly(String keyPrefix, long expireMillis) {
+        double recompute = statsOf(keyPrefix).recomputeMillis(DEFAULT_RECOMPUTE_MILLIS);
+        //-ln(random)服从均值为1的指数分布
+        double gap = -recompute * cacheProperties.getEarlyRefreshBeta() * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireMillis;
+    }
+
+    private <R,ID> void refreshInBackground(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //本节点同一个key同时只刷新一次，重复提交会被合并
+        boolean accepted = cacheRebuildExecutor.submit(key, () -> {
+            loadWithExpiry(keyPrefix, id, dbFallback, time, unit);
+            //通知其它节点丢弃旧的本地缓存，本节点的已经在加载时更新
+            publishInvalidate(key);
+        }, null);
+        if (accepted) {
+            statsOf(keyPrefix).earlyRefresh();
+        }
+    }
+
+    //查询数据库，写入带逻辑过期时间的数据，TTL与逻辑过期时间一致
+    private <R,ID> R loadWithExpiry(String keyPrefix, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        R r = timedLoad(keyPrefix, id, dbFallback);
+        if (r == null) {
+            //数据库中不存在，解决缓存穿透，将空值写入redis
+            setRaw(key, NULL_VALUE, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+        } else {
+            long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+            setRaw(key, LogicalEnvelope.wrap(cacheCodecs.forWrite(key), r, expireMillis), unit.toSeconds(time));
+            putLocal(keyPrefix, key, new LogicalValue<>(expireMillis, r));
+        }
+        return r;
+    }
 }
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器
+ * 带头部的编码格式以 {@link #MAGIC} 开头，第二个字节为编解码器id，第三个字节为格式版本，
+ * 没有头部的数据按历史的JSON格式处理，因此不同编解码器写入的数据可以共存，按前缀逐步迁移
+ * 逻辑过期数据统一使用 {@link LogicalEnvelope} 包装，编解码器只负责数据本身
+ */
+public interface CacheCodec {
+
+    byte MAGIC = (byte) 0xCC;
+
+    /**
+     * 编解码器id，写在头部第二个字节
+     */
+    byte id();
+
+    /**
+     * 配置中使用的名称
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    default <R> R decode(byte[] bytes, Class<R> type) {
+        return decode(bytes, 0, bytes.length, type);
+    }
+
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> type);
+
+    /**
+     * 解析没有定长头部的历史逻辑过期数据
+     */
+    <R> LogicalValue<R> decodeLogical(byte[] bytes, Class<R> type);
+}
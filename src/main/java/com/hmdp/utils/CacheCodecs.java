@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 编解码器注册表：写入时按key前缀选择，读取时按数据头部识别
+ */
+@Component
+public class CacheCodecs {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private final Map<String, CacheCodec> byName = new HashMap<>();
+    private final CacheCodec[] byId = new CacheCodec[256];
+    private final Map<String, CacheCodec> byPrefix = new HashMap<>();
+    private CacheCodec json;
+    private CacheCodec defaultCodec;
+
+    @PostConstruct
+    private void init() {
+        json = register(new JsonCacheCodec());
+        register(new SmileCacheCodec());
+        defaultCodec = named(cacheProperties.getDefaultCodec());
+        for (CacheProperties.CodecSpec spec : cacheProperties.getCodecs()) {
+            byPrefix.put(spec.getPrefix(), named(spec.getCodec()));
+        }
+    }
+
+    /**
+     * 写入时使用的编解码器，按key匹配配置的前缀
+     */
+    public CacheCodec forWrite(String key) {
+        for (Map.Entry<String, CacheCodec> entry : byPrefix.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultCodec;
+    }
+
+    /**
+     * 解码数据，逻辑过期数据只返回其中的数据
+     */
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (LogicalEnvelope.isEnvelope(bytes)) {
+            return byId(LogicalEnvelope.codecId(bytes)).decode(bytes, LogicalEnvelope.HEADER_LENGTH,
+                    bytes.length - LogicalEnvelope.HEADER_LENGTH, type);
+        }
+        return forRead(bytes).decode(bytes, type);
+    }
+
+    /**
+     * 解码逻辑过期数据，兼容没有定长头部的历史格式
+     */
+    public <R> LogicalValue<R> decodeLogical(byte[] bytes, Class<R> type) {
+        if (LogicalEnvelope.isEnvelope(bytes)) {
+            return new LogicalValue<>(LogicalEnvelope.expireMillis(bytes), decode(bytes, type));
+        }
+        return forRead(bytes).decodeLogical(bytes, type);
+    }
+
+    //按头部识别编解码器，没有头部的是历史JSON数据
+    private CacheCodec forRead(byte[] bytes) {
+        if (bytes.length > 1 && bytes[0] == CacheCodec.MAGIC) {
+            return byId(bytes[1]);
+        }
+        return json;
+    }
+
+    private CacheCodec byId(byte id) {
+        CacheCodec codec = byId[id & 0xff];
+        if (codec == null) {
+            throw new IllegalArgumentException("未知的缓存编解码器id: " + id);
+        }
+        return codec;
+    }
+
+    private CacheCodec register(CacheCodec codec) {
+        byName.put(codec.name(), codec);
+        byId[codec.id() & 0xff] = codec;
+        return codec;
+    }
+
+    private CacheCodec named(String name) {
+        CacheCodec codec = byName.get(name);
+        if (codec == null) {
+            throw new IllegalArgumentException("未知的缓存编解码器: " + name);
+        }
+        return codec;
+    }
+}
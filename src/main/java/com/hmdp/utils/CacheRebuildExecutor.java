@@ -0,0 +1,266 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建线程池：有界队列，同一个key排队期间只保留一个任务，
+ * 被重复提交的key视为更热，优先执行；队列满时按配置的拒绝策略处理
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum RejectionPolicy {
+        /**
+         * 丢弃新任务
+         */
+        DISCARD,
+        /**
+         * 丢弃队列中只被访问过一次且最早入队的任务，新任务入队，没有这样的任务时丢弃新任务
+         */
+        DISCARD_COLDEST,
+        /**
+         * 由提交任务的线程直接执行
+         */
+        CALLER_RUNS
+    }
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private ThreadPoolExecutor executor;
+
+    private PriorityBlockingQueue<Runnable> queue;
+
+    //排队或执行中的任务，key为缓存key
+    private final Map<String, RebuildTask> pending = new ConcurrentHashMap<>();
+
+    //调整队列的操作需要互斥，避免同一个任务被重复入队
+    private final Object queueLock = new Object();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder waitMillis = new LongAdder();
+    private final LongAdder runMillis = new LongAdder();
+    private final AtomicLong maxRunMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.Rebuild config = cacheProperties.getRebuild();
+        queue = new PriorityBlockingQueue<>();
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 0, TimeUnit.MILLISECONDS, queue,
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        //工作线程全部预先启动，之后任务直接放入队列
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，同一个key排队或执行期间再次提交会被合并
+     * @param task 重建逻辑
+     * @param onDiscard 任务未执行(被拒绝、合并到已有任务或停机)时的回调，用于立即释放重建锁
+     * @return 任务是否被接受，合并或被拒绝时返回false
+     */
+    public boolean submit(String key, Runnable task, Runnable onDiscard) {
+        RebuildTask discarded = null;
+        RebuildTask rebuildTask;
+        synchronized (queueLock) {
+            //1.已有同一个key的任务，提高它的优先级，本次提交不会执行
+            if (touch(key)) {
+                rebuildTask = null;
+            } else {
+                rebuildTask = new RebuildTask(key, task, onDiscard, sequence.incrementAndGet());
+                //2.队列已满，按拒绝策略处理
+                if (executor.isShutdown()) {
+                    discarded = rebuildTask;
+                } else if (queue.size() >= cacheProperties.getRebuild().getQueueCapacity()) {
+                    switch (cacheProperties.getRebuild().getRejectionPolicy()) {
+                        case DISCARD_COLDEST:
+                            discarded = coldest();
+                            if (discarded == null || discarded.hits > rebuildTask.hits) {
+                                discarded = rebuildTask;
+                            } else {
+                                queue.remove(discarded);
+                                pending.remove(discarded.key, discarded);
+                            }
+                            break;
+                        case CALLER_RUNS:
+                            pending.put(key, rebuildTask);
+                            submitted.increment();
+                            rebuildTask.callerRuns = true;
+                            break;
+                        default:
+                            discarded = rebuildTask;
+                    }
+                }
+                //3.入队
+                if (discarded != rebuildTask && !rebuildTask.callerRuns) {
+                    pending.put(key, rebuildTask);
+                    submitted.increment();
+                    queue.offer(rebuildTask);
+                }
+            }
+        }
+        if (rebuildTask == null) {
+            //合并到已有任务，调用方获取的锁由本次提交释放，已有任务执行结束时会释放它自己的锁
+            runOnDiscard(key, onDiscard);
+            return false;
+        }
+        if (discarded != null) {
+            discard(discarded);
+        }
+        if (rebuildTask.callerRuns) {
+            rebuildTask.run();
+        }
+        return discarded != rebuildTask;
+    }
+
+    /**
+     * 该key已在排队或执行时记一次访问，排队中的任务优先级提高
+     * @return 是否已有该key的任务
+     */
+    public boolean touch(String key) {
+        RebuildTask existing = pending.get(key);
+        if (existing == null) {
+            return false;
+        }
+        deduplicated.increment();
+        synchronized (queueLock) {
+            //优先级变化前先出队，再按新的优先级入队，已开始执行的任务不需要调整
+            if (queue.remove(existing)) {
+                existing.hits++;
+                queue.offer(existing);
+            }
+        }
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        long done = succeeded.sum() + failed.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("queueDepth", queue.size());
+        map.put("active", executor.getActiveCount());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("succeeded", succeeded.sum());
+        map.put("failed", failed.sum());
+        map.put("avgWaitMillis", done == 0 ? 0 : waitMillis.sum() / done);
+        map.put("avgRunMillis", done == 0 ? 0 : runMillis.sum() / done);
+        map.put("maxRunMillis", maxRunMillis.get());
+        return map;
+    }
+
+    @PreDestroy
+    private void shutdown() throws InterruptedException {
+        //1.不再接受新任务，等待队列中的任务执行完
+        executor.shutdown();
+        long timeout = cacheProperties.getRebuild().getShutdownTimeout().toMillis();
+        if (executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            return;
+        }
+        //2.超时后放弃剩余任务，释放它们持有的锁
+        for (Runnable r : executor.shutdownNow()) {
+            discard((RebuildTask) r);
+        }
+        log.warn("缓存重建线程池停止超时, 剩余任务已丢弃");
+    }
+
+    //队列中访问次数最少的任务，相同时取最早入队的
+    private RebuildTask coldest() {
+        RebuildTask coldest = null;
+        for (Runnable r : queue) {
+            RebuildTask task = (RebuildTask) r;
+            if (coldest == null || task.hits < coldest.hits || (task.hits == coldest.hits && task.seq < coldest.seq)) {
+                coldest = task;
+            }
+        }
+        return coldest;
+    }
+
+    private void discard(RebuildTask task) {
+        rejected.increment();
+        pending.remove(task.key, task);
+        log.warn("缓存重建任务被丢弃, key={}", task.key);
+        runOnDiscard(task.key, task.onDiscard);
+    }
+
+    private void runOnDiscard(String key, Runnable onDiscard) {
+        if (onDiscard != null) {
+            try {
+                onDiscard.run();
+            } catch (Exception e) {
+                log.error("缓存重建任务丢弃回调失败, key={}", key, e);
+            }
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable task;
+        private final Runnable onDiscard;
+        private final long seq;
+        private final long enqueueNanos = System.nanoTime();
+        //访问次数，越大越优先，只在出队状态下修改
+        private volatile int hits = 1;
+        private boolean callerRuns;
+
+        RebuildTask(String key, Runnable task, Runnable onDiscard, long seq) {
+            this.key = key;
+            this.task = task;
+            this.onDiscard = onDiscard;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            waitMillis.add(TimeUnit.NANOSECONDS.toMillis(begin - enqueueNanos));
+            try {
+                task.run();
+                succeeded.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("缓存重建失败, key={}", key, e);
+            } finally {
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+                runMillis.add(millis);
+                maxRunMillis.accumulateAndGet(millis, Math::max);
+                pending.remove(key, this);
+            }
+        }
+
+        //访问次数多的在前，相同时先提交的在前
+        @Override
+        public int compareTo(RebuildTask o) {
+            if (hits != o.hits) {
+                return Integer.compare(o.hits, hits);
+            }
+            return Long.compare(seq, o.seq);
+        }
+    }
+}
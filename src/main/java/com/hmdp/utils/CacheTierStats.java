@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个key前缀的分层命中统计：L1为本地缓存，L2为redis
+ * 同时记录该前缀查询数据库重建缓存的耗时，供概率提前刷新使用
+ */
+public class CacheTierStats {
+
+    private final LongAdder localHit = new LongAdder();
+    private final LongAdder localMiss = new LongAdder();
+    private final LongAdder redisHit = new LongAdder();
+    private final LongAdder redisMiss = new LongAdder();
+    private final LongAdder earlyRefresh = new LongAdder();
+
+    //重建耗时的指数加权移动平均，单位毫秒，按double的bit保存
+    private static final double RECOMPUTE_ALPHA = 0.2;
+    private final AtomicLong recomputeMillis = new AtomicLong(Double.doubleToLongBits(-1));
+
+    public void localHit() {
+        localHit.increment();
+    }
+
+    public void localMiss() {
+        localMiss.increment();
+    }
+
+    public void redisHit() {
+        redisHit.increment();
+    }
+
+    public void redisMiss() {
+        redisMiss.increment();
+    }
+
+    public void earlyRefresh() {
+        earlyRefresh.increment();
+    }
+
+    /**
+     * 记录一次重建耗时
+     */
+    public void recordRecompute(long millis) {
+        recomputeMillis.getAndUpdate(bits -> {
+            double old = Double.longBitsToDouble(bits);
+            double next = old < 0 ? millis : old + RECOMPUTE_ALPHA * (millis - old);
+            return Double.doubleToLongBits(next);
+        });
+    }
+
+    /**
+     * 平均重建耗时，还没有记录时返回defaultMillis
+     */
+    public double recomputeMillis(double defaultMillis) {
+        double millis = Double.longBitsToDouble(recomputeMillis.get());
+        return millis < 0 ? defaultMillis : millis;
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("localHit", localHit.sum());
+        map.put("localMiss", localMiss.sum());
+        map.put("redisHit", redisHit.sum());
+        map.put("redisMiss", redisMiss.sum());
+        map.put("earlyRefresh", earlyRefresh.sum());
+        map.put("recomputeMillis", Math.round(recomputeMillis(0)));
+        return map;
+    }
+}
@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.ShopTypeMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热：启动时按主键分批读取tb_shop，通过pipeline写入商铺缓存和GEO索引，并写入商铺类型列表
+ * 加载比例达到配置值(或超时)之前不对外声明就绪
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+
+    @Resource
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.warmup.batch-size:500}")
+    private int batchSize;
+
+    @Value("${hmdp.warmup.ready-fraction:0.9}")
+    private double readyFraction;
+
+    @Value("${hmdp.warmup.ready-timeout:60s}")
+    private Duration readyTimeout;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile long total;
+
+    private volatile long loaded;
+
+    private volatile CountDownLatch ready = new CountDownLatch(0);
+
+    /**
+     * 启动时执行，在达到就绪比例之前阻塞，spring在所有runner完成后才声明就绪
+     */
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        start();
+        if (!ready.await(readyTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("缓存预热未在{}内达到就绪比例, 已加载{}/{}", readyTimeout, loaded, total);
+        }
+    }
+
+    /**
+     * 在后台开始预热，已有预热在进行时直接返回false
+     * 预热期间声明不可接收流量，达到就绪比例后恢复
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        ready = new CountDownLatch(1);
+        loaded = 0;
+        AvailabilityChangeEvent.publish(applicationEventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        new Thread(() -> {
+            long begin = System.currentTimeMillis();
+            try {
+                warmShopTypes();
+                warmShops();
+                log.info("缓存预热完成, 共{}条, 耗时{}ms", loaded, System.currentTimeMillis() - begin);
+            } catch (Exception e) {
+                log.error("缓存预热失败, 已加载{}/{}", loaded, total, e);
+            } finally {
+                markReady();
+                running.set(false);
+            }
+        }, "cache-warmup").start();
+        return true;
+    }
+
+    public Map<String, Object> progress() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("running", running.get());
+        map.put("total", total);
+        map.put("loaded", loaded);
+        map.put("ready", ready.getCount() == 0);
+        return map;
+    }
+
+    //商铺类型列表，与ShopTypeServiceImpl的格式一致，写入临时key后RENAME，读取方不会看到空列表
+    private void warmShopTypes() {
+        List<ShopType> types = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort"));
+        if (types.isEmpty()) {
+            return;
+        }
+        byte[] key = CACHE_SHOPTYPE_KEY.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (CACHE_SHOPTYPE_KEY + "warmup").getBytes(StandardCharsets.UTF_8);
+        byte[][] values = new byte[types.size()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = JSONUtil.toJsonStr(types.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().del(tmpKey);
+            connection.listCommands().rPush(tmpKey, values);
+            connection.keyCommands().rename(tmpKey, key);
+            return null;
+        });
+    }
+
+    //按主键分批扫描 select * from tb_shop where id > ? order by id limit ?
+    private void warmShops() {
+        total = shopMapper.selectCount(null);
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + batchSize));
+            if (shops.isEmpty()) {
+                return;
+            }
+            //1.商铺缓存，已存在的不覆盖
+            Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+            //2.按类型分组的GEO坐标
+            Map<Long, Map<byte[], Point>> geo = new HashMap<>();
+            for (Shop shop : shops) {
+                values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+                if (shop.getX() != null && shop.getY() != null) {
+                    geo.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                            .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+                }
+            }
+            cacheClient.setAllIfAbsentWithExpiry(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<Long, Map<byte[], Point>> entry : geo.entrySet()) {
+                    connection.geoCommands().geoAdd((SHOP_GEO_KEY + entry.getKey()).getBytes(StandardCharsets.UTF_8), entry.getValue());
+                }
+                return null;
+            });
+            //3.汇报进度，达到比例后声明就绪
+            loaded += shops.size();
+            log.info("缓存预热进度 {}/{}", loaded, total);
+            if (total > 0 && loaded >= total * readyFraction) {
+                markReady();
+            }
+            if (shops.size() < batchSize) {
+                return;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
+
+    private void markReady() {
+        if (ready.getCount() > 0) {
+            ready.countDown();
+            AvailabilityChangeEvent.publish(applicationEventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：按秒分片的count-min sketch组成滑动窗口，对读请求抽样计数，
+ * 窗口内的平均访问速率超过阈值的key标记为热点，低于阈值一半后取消
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private CacheProperties.HotKey config;
+
+    //环形数组，每个元素是一秒内的计数
+    private Slot[] slots;
+
+    private int width;
+
+    //当前的热点key
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        config = cacheProperties.getHotKey();
+        //宽度取2的幂，用位运算取下标
+        width = Integer.highestOneBit(Math.max(config.getSketchWidth() - 1, 1)) << 1;
+        slots = new Slot[config.getWindowSeconds()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(config.getSketchDepth() * width);
+        }
+    }
+
+    /**
+     * 记录一次读取
+     * @return 该key当前是否为热点
+     */
+    public boolean record(String key) {
+        if (!config.isEnabled()) {
+            return false;
+        }
+        //1.抽样计数
+        if (config.getSampleRate() >= 1 || ThreadLocalRandom.current().nextDouble() < config.getSampleRate()) {
+            long second = System.currentTimeMillis() / 1000;
+            int[] indexes = indexes(key);
+            Slot slot = slotOf(second);
+            for (int index : indexes) {
+                slot.counts.incrementAndGet(index);
+            }
+            //2.估算窗口内的访问速率，判断是否升级或降级
+            double rate = estimate(indexes, second) / config.getSampleRate() / slots.length;
+            HotKey hotKey = hotKeys.get(key);
+            if (hotKey != null) {
+                hotKey.setRate(rate);
+                hotKey.setLastSeen(second);
+                if (rate < config.getThreshold() / 2) {
+                    hotKeys.remove(key);
+                    log.info("热点key降级, key={}, rate={}", key, rate);
+                    return false;
+                }
+                return true;
+            }
+            if (rate >= config.getThreshold() && hotKeys.size() < config.getMaxHotKeys()) {
+                hotKeys.put(key, new HotKey(key, rate, second, second));
+                log.info("发现热点key, key={}, rate={}", key, rate);
+                return true;
+            }
+            return false;
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 当前的热点key，按访问速率从高到低
+     */
+    public List<HotKey> hotKeys() {
+        List<HotKey> list = new ArrayList<>(hotKeys.values());
+        list.sort(Comparator.comparingDouble(HotKey::getRate).reversed());
+        return list;
+    }
+
+    //取当前秒对应的分片，分片属于旧的窗口时先清零
+    private Slot slotOf(long second) {
+        Slot slot = slots[(int) (second % slots.length)];
+        if (slot.second != second) {
+            synchronized (slot) {
+                if (slot.second != second) {
+                    for (int i = 0; i < slot.counts.length(); i++) {
+                        slot.counts.set(i, 0);
+                    }
+                    slot.second = second;
+                    //每秒清理一次整个窗口内都没有被访问过的热点key
+                    hotKeys.values().removeIf(hotKey -> hotKey.getLastSeen() <= second - slots.length);
+                }
+            }
+        }
+        return slot;
+    }
+
+    //每一行的计数在窗口内累加，再取各行的最小值
+    private long estimate(int[] indexes, long second) {
+        long min = Long.MAX_VALUE;
+        for (int index : indexes) {
+            long sum = 0;
+            for (Slot slot : slots) {
+                if (slot.second > second - slots.length) {
+                    sum += slot.counts.get(index);
+                }
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    //双重哈希，每一行一个下标
+    private int[] indexes(String key) {
+        int h1 = key.hashCode();
+        int h2 = (h1 >>> 16) ^ (h1 * 0x9E3779B9);
+        int[] indexes = new int[config.getSketchDepth()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i * width + ((h1 + i * h2) & (width - 1));
+        }
+        return indexes;
+    }
+
+    private static class Slot {
+        private volatile long second = -1;
+        private final AtomicLongArray counts;
+
+        Slot(int size) {
+            this.counts = new AtomicLongArray(size);
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private String key;
+        /**
+         * 窗口内的平均每秒访问次数
+         */
+        private volatile double rate;
+        /**
+         * 成为热点的时间，epoch秒
+         */
+        private long since;
+        private volatile long lastSeen;
+    }
+}
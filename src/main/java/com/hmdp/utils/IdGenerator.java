@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器
+ */
+public interface IdGenerator {
+
+    long nextId(String keyPrefix);
+
+    /**
+     * 是否在本地生成，不需要访问网络
+     */
+    default boolean isLocal() {
+        return false;
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 按keyPrefix选择id生成器，hmdp.id.generators中没有配置的使用RedisIdWorker
+ */
+@Component
+public class IdGenerators {
+
+    @Resource
+    private IdProperties idProperties;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    public IdGenerator get(String keyPrefix) {
+        IdProperties.Generator generator = idProperties.getGenerators().get(keyPrefix);
+        return generator == IdProperties.Generator.SNOWFLAKE ? snowflakeIdGenerator : redisIdWorker;
+    }
+
+    public long nextId(String keyPrefix) {
+        return get(keyPrefix).nextId(keyPrefix);
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 历史的Hutool JSON格式，没有头部，历史的逻辑过期数据为 {@link RedisData}
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public byte id() {
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        JSONObject obj = JSONUtil.parseObj(new String(bytes, offset, length, StandardCharsets.UTF_8));
+        //同一个key可能被逻辑过期方法写成RedisData格式，此时取出其中的data
+        if (obj.containsKey("expireTime") && obj.get("data") instanceof JSONObject) {
+            return JSONUtil.toBean(obj.getJSONObject("data"), type);
+        }
+        return JSONUtil.toBean(obj, type);
+    }
+
+    @Override
+    public <R> LogicalValue<R> decodeLogical(byte[] bytes, Class<R> type) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        LocalDateTime expireTime = redisData.getExpireTime();
+        if (expireTime == null) {
+            //批量查询写入的普通缓存没有逻辑过期时间，按已过期处理
+            return new LogicalValue<>(0, JSONUtil.toBean(json, type));
+        }
+        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        return new LogicalValue<>(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), r);
+    }
+}
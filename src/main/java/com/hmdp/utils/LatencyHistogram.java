@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时直方图，单位微秒，分位数取所在桶的上界
+ */
+public class LatencyHistogram {
+
+    //各个桶的上界，最后还有一个不封顶的桶
+    private static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000};
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int i = 0;
+        while (i < BOUNDS.length && micros > BOUNDS[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder adder : counts) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    /**
+     * 分位数，0 < p <= 1，落在不封顶的桶时返回最大值
+     */
+    public long percentile(double p) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(BOUNDS[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long count = count();
+        map.put("count", count);
+        map.put("meanMicros", count == 0 ? 0 : sum.sum() / count);
+        map.put("p50Micros", percentile(0.5));
+        map.put("p99Micros", percentile(0.99));
+        map.put("maxMicros", max.get());
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            buckets.put(i < BOUNDS.length ? "<=" + BOUNDS[i] : ">" + BOUNDS[BOUNDS.length - 1], counts[i].sum());
+        }
+        map.put("buckets", buckets);
+        return map;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+/**
+ * 逻辑过期数据的定长头部，过期时间放在数据前面，判断是否过期时不需要反序列化数据
+ * 格式：MAGIC | 0x7F | 版本 | 数据的编解码器id | 过期时间(epoch毫秒，8字节大端) | 数据
+ */
+public final class LogicalEnvelope {
+
+    public static final byte ENVELOPE_ID = (byte) 0x7F;
+    public static final int HEADER_LENGTH = 12;
+    private static final byte VERSION = 1;
+
+    private LogicalEnvelope() {
+    }
+
+    public static byte[] wrap(CacheCodec codec, Object value, long expireMillis) {
+        byte[] payload = codec.encode(value);
+        byte[] bytes = new byte[HEADER_LENGTH + payload.length];
+        bytes[0] = CacheCodec.MAGIC;
+        bytes[1] = ENVELOPE_ID;
+        bytes[2] = VERSION;
+        bytes[3] = codec.id();
+        for (int i = 0; i < 8; i++) {
+            bytes[4 + i] = (byte) (expireMillis >>> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, bytes, HEADER_LENGTH, payload.length);
+        return bytes;
+    }
+
+    /**
+     * 只需要头部即可判断，可以配合GETRANGE只读取前 {@link #HEADER_LENGTH} 个字节
+     */
+    public static boolean isEnvelope(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_LENGTH
+                && bytes[0] == CacheCodec.MAGIC && bytes[1] == ENVELOPE_ID;
+    }
+
+    public static byte codecId(byte[] bytes) {
+        return bytes[3];
+    }
+
+    public static long expireMillis(byte[] bytes) {
+        long millis = 0;
+        for (int i = 0; i < 8; i++) {
+            millis = (millis << 8) | (bytes[4 + i] & 0xff);
+        }
+        return millis;
+    }
+}
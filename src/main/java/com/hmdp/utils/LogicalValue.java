@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 解码后的逻辑过期数据
+ */
+@Data
+@AllArgsConstructor
+public class LogicalValue<R> {
+    /**
+     * 逻辑过期时间，epoch毫秒
+     */
+    private long expireMillis;
+    private R data;
+}
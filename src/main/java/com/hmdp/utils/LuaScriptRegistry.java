@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.SecureUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.NonTransientDataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * lua脚本注册表：启动时读取本应用classpath下lua目录中的.lua文件并SCRIPT LOAD，之后只通过EVALSHA调用
+ * 只扫描本应用自己的目录，依赖jar中同名的脚本不会被加载
+ * redis主从切换或重启后脚本缓存会丢失，收到NOSCRIPT时重新加载全部脚本再重试一次
+ * eval-fallback用于不支持脚本缓存的测试替身，开启后直接EVAL脚本内容
+ */
+@Slf4j
+@Component
+public class LuaScriptRegistry {
+
+    public static final String SECKILL = "seckill";
+    public static final String UNLOCK = "unlock";
+    public static final String LEASE_RENEW = "lease_renew";
+    public static final String REENTRANT_LOCK = "reentrant_lock";
+    public static final String REENTRANT_UNLOCK = "reentrant_unlock";
+    public static final String REENTRANT_RENEW = "reentrant_renew";
+    public static final String ORDER_STATUS_FAIL = "order_status_fail";
+
+    private static final String SCRIPT_LOCATION = "classpath:lua/*.lua";
+
+    @javax.annotation.Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.lua.eval-fallback:false}")
+    private boolean evalFallback;
+
+    //脚本名(文件名去掉.lua) -> 脚本
+    private final Map<String, Script> scripts = new LinkedHashMap<>();
+
+    private final LongAdder reloads = new LongAdder();
+
+    @PostConstruct
+    private void init() throws IOException {
+        //1.读取所有脚本并计算sha1
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources(SCRIPT_LOCATION);
+        for (Resource resource : resources) {
+            String filename = resource.getFilename();
+            try (InputStream in = resource.getInputStream()) {
+                String source = IoUtil.read(in, StandardCharsets.UTF_8);
+                scripts.put(filename.substring(0, filename.length() - ".lua".length()), new Script(source));
+            }
+        }
+        //2.预先加载到redis
+        if (!evalFallback) {
+            loadAll();
+        }
+        log.info("lua脚本加载完成: {}", scripts.keySet());
+    }
+
+    /**
+     * 重新SCRIPT LOAD全部脚本
+     */
+    public void loadAll() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (Script script : scripts.values()) {
+                String sha = connection.scriptingCommands().scriptLoad(script.source.getBytes(StandardCharsets.UTF_8));
+                if (!script.sha.equals(sha)) {
+                    //sha1由脚本内容决定，不一致说明读取的内容有问题
+                    throw new IllegalStateException("lua脚本sha不一致: " + script.sha + " != " + sha);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 执行脚本
+     * @param name 脚本名，即文件名去掉.lua
+     * @param resultType 返回值类型：Long、Boolean、String、List，其余按状态回复处理
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在: " + name);
+        }
+        ReturnType returnType = ReturnType.fromJavaType(resultType);
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        long begin = System.nanoTime();
+        try {
+            Object result;
+            try {
+                result = eval(script, returnType, keys.size(), keysAndArgs);
+            } catch (NonTransientDataAccessException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                //redis丢失了脚本缓存，重新加载后重试
+                log.warn("redis中没有lua脚本{}, 重新加载", name);
+                reloads.increment();
+                loadAll();
+                result = eval(script, returnType, keys.size(), keysAndArgs);
+            }
+            return (T) deserialize(result);
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        } finally {
+            script.latency.record(System.nanoTime() - begin);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("evalFallback", evalFallback);
+        map.put("reloads", reloads.sum());
+        for (Map.Entry<String, Script> entry : scripts.entrySet()) {
+            Script script = entry.getValue();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("sha", script.sha);
+            stats.put("errors", script.errors.sum());
+            stats.put("latency", script.latency.snapshot());
+            map.put(entry.getKey(), stats);
+        }
+        return map;
+    }
+
+    private Object eval(Script script, ReturnType returnType, int numKeys, byte[][] keysAndArgs) {
+        return stringRedisTemplate.execute((RedisCallback<Object>) connection -> evalFallback
+                ? connection.scriptingCommands().eval(script.source.getBytes(StandardCharsets.UTF_8), returnType, numKeys, keysAndArgs)
+                : connection.scriptingCommands().evalSha(script.sha, returnType, numKeys, keysAndArgs));
+    }
+
+    //与spring的ScriptUtils一致，沿着异常链查找NOSCRIPT
+    private boolean isNoScript(Throwable e) {
+        for (Throwable current = e; current != null; current = current.getCause()) {
+            if (current.getMessage() != null && current.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[][] keysAndArgs(List<String> keys, Object[] args) {
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (Object arg : args) {
+            keysAndArgs[i++] = String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+        }
+        return keysAndArgs;
+    }
+
+    //批量回复中的字符串转为String，整数保持Long
+    private Object deserialize(Object result) {
+        if (result instanceof byte[]) {
+            return new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        if (result instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) result).size());
+            for (Object item : (List<?>) result) {
+                list.add(deserialize(item));
+            }
+            return list;
+        }
+        return result;
+    }
+
+    private static class Script {
+        private final String source;
+        private final String sha;
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Script(String source) {
+            this.source = source;
+            this.sha = SecureUtil.sha1(source);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单的异步处理状态，保存在 order:status:orderId hash中：status、reason、userId、voucherId
+ * 下单成功后为QUEUED，消费者写库后改为PERSISTED，库存不足、重复购买、转入死信队列时改为FAILED
+ * 状态变为终态时在 order:status 频道发布订单id，唤醒各节点上等待该订单的长轮询请求
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+
+    private static final String STATUS = "status";
+    private static final String REASON = "reason";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //spring boot自动配置的定时任务线程池，用于长轮询超时
+    @Resource
+    private ThreadPoolTaskScheduler taskScheduler;
+
+    //订单id -> 等待该订单结果的请求
+    private final Map<Long, Set<CompletableFuture<Map<Object, Object>>>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Long orderId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            Set<CompletableFuture<Map<Object, Object>>> futures = waiters.remove(orderId);
+            if (futures != null) {
+                Map<Object, Object> status = get(orderId);
+                futures.forEach(future -> future.complete(status));
+            }
+        }, new ChannelTopic(ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 下单成功，状态为QUEUED；消费者可能已经先写入了终态，所以状态用HSETNX
+     */
+    public void queued(long orderId, Long userId, Long voucherId) {
+        byte[] key = (ORDER_STATUS_KEY + orderId).getBytes(StandardCharsets.UTF_8);
+        Map<byte[], byte[]> fields = new HashMap<>(4);
+        fields.put("userId".getBytes(StandardCharsets.UTF_8), userId.toString().getBytes(StandardCharsets.UTF_8));
+        fields.put("voucherId".getBytes(StandardCharsets.UTF_8), voucherId.toString().getBytes(StandardCharsets.UTF_8));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.hashCommands().hSetNX(key, STATUS.getBytes(StandardCharsets.UTF_8), QUEUED.getBytes(StandardCharsets.UTF_8));
+            connection.hashCommands().hMSet(key, fields);
+            connection.keyCommands().expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+            return null;
+        });
+    }
+
+    /**
+     * 订单已写入数据库
+     */
+    public void persisted(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                byte[] key = (ORDER_STATUS_KEY + voucherOrder.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.hashCommands().hSet(key, STATUS.getBytes(StandardCharsets.UTF_8), PERSISTED.getBytes(StandardCharsets.UTF_8));
+                connection.keyCommands().expire(key, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL));
+                connection.publish(ORDER_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                        voucherOrder.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 订单处理失败，已经是PERSISTED的不会被覆盖
+     */
+    public void failed(Long orderId, String reason) {
+        luaScriptRegistry.execute(LuaScriptRegistry.ORDER_STATUS_FAIL, Long.class,
+                Collections.singletonList(ORDER_STATUS_KEY + orderId),
+                reason, TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL), ORDER_STATUS_CHANNEL, orderId);
+    }
+
+    /**
+     * 查询状态，不存在时返回空map
+     */
+    public Map<Object, Object> get(Long orderId) {
+        return stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+    }
+
+    public static boolean isFinal(Map<Object, Object> status) {
+        Object value = status.get(STATUS);
+        return PERSISTED.equals(value) || FAILED.equals(value);
+    }
+
+    /**
+     * 等待订单进入终态，超过timeoutMillis时以当前状态完成
+     * 先登记再查询一次，避免错过登记之前发布的通知；完成后自动移除登记
+     */
+    public CompletableFuture<Map<Object, Object>> await(Long orderId, long timeoutMillis) {
+        CompletableFuture<Map<Object, Object>> future = new CompletableFuture<>();
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArraySet<>()).add(future);
+        ScheduledFuture<?> timeout = taskScheduler.schedule(() -> future.complete(get(orderId)),
+                new Date(System.currentTimeMillis() + timeoutMillis));
+        future.whenComplete((status, e) -> {
+            timeout.cancel(false);
+            cancel(orderId, future);
+        });
+        Map<Object, Object> status = get(orderId);
+        if (isFinal(status)) {
+            future.complete(status);
+        }
+        return future;
+    }
+
+    private void cancel(Long orderId, CompletableFuture<Map<Object, Object>> future) {
+        waiters.computeIfPresent(orderId, (k, futures) -> {
+            futures.remove(future);
+            return futures.isEmpty() ? null : futures;
+        });
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADDED_CHANNEL;
+
+/**
+ * 布隆过滤器，redis的bitmap为权威数据，本地保存一份镜像，判断只查本地镜像，不访问redis
+ * 新增元素时在 bloom:added 频道广播，其它节点收到后写入本地镜像；错过的广播由定期从redis拉取bitmap补上
+ * key为 bloom:{name}，重建用的临时key带相同的hash tag，集群下BITOP的两个key在同一个slot
+ */
+public class RedisBloomFilter {
+
+    private static final String KEY_PREFIX = "bloom:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String name;
+    private final String key;
+    //bit数组长度
+    private final long numBits;
+    //哈希函数个数
+    private final int numHashes;
+    //本地镜像，bit下标与redis的offset一致；只置位不替换，重建期间的新增不会丢失
+    private final AtomicLongArray localBits;
+    //重建完成前不做拦截
+    private volatile boolean ready;
+
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.name = name;
+        this.key = KEY_PREFIX + "{" + name + "}";
+        //m = -n*ln(p)/(ln2)^2，redis的bitmap最多2^32位
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.min(Math.max(bits, 64), 1L << 32);
+        //k = m/n*ln2
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.localBits = new AtomicLongArray(wordCount());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 添加元素，写入本地镜像和redis，并通知其它节点
+     */
+    public void add(String value) {
+        long[] offsets = offsets(value);
+        addLocal(offsets);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = rawKey();
+            for (long offset : offsets) {
+                connection.stringCommands().setBit(rawKey, offset, true);
+            }
+            connection.publish(BLOOM_ADDED_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                    (name + ":" + value).getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+    }
+
+    /**
+     * 其它节点新增的元素，只写入本地镜像
+     */
+    public void addLocal(String value) {
+        addLocal(offsets(value));
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false时一定不存在；只查本地镜像
+     */
+    public boolean mightContain(String value) {
+        if (!ready) {
+            return true;
+        }
+        return containsAll(localBits, offsets(value));
+    }
+
+    /**
+     * 从redis拉取bitmap与本地镜像做OR合并，补上错过的广播
+     */
+    public void refresh() {
+        if (!ready) {
+            return;
+        }
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey()));
+        if (bytes != null) {
+            merge(bytes);
+        }
+    }
+
+    /**
+     * 根据全量数据重建，新数据与redis中已有的bit做OR合并，不会丢失重建期间其它节点新增的元素
+     * @param loader 逐个提供全量元素
+     */
+    public void rebuild(Consumer<Consumer<String>> loader) {
+        //1.在本地按redis的bit顺序构建完整的bitmap
+        byte[] bytes = new byte[(int) ((numBits + 7) / 8)];
+        loader.accept(value -> {
+            for (long offset : offsets(value)) {
+                bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            }
+        });
+        //2.写入临时key，再与正式key做OR合并
+        byte[] rawKey = rawKey();
+        byte[] tmpKey = tmpKey();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bytes);
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, rawKey, rawKey, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+        //3.从redis加载合并后的结果，OR进本地镜像；不替换数组，重建期间add写入的bit保留
+        byte[] merged = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+        merge(merged == null ? bytes : merged);
+        ready = true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    //双重哈希计算k个offset：h1 + i*h2
+    private long[] offsets(String value) {
+        long[] hash = MurmurHash.hash128(value.getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            long combined = hash[0] + i * hash[1];
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+
+    private void addLocal(long[] offsets) {
+        for (long offset : offsets) {
+            setLocal(offset);
+        }
+    }
+
+    private boolean containsAll(AtomicLongArray bits, long[] offsets) {
+        for (long offset : offsets) {
+            if ((bits.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setLocal(long offset) {
+        long mask = 1L << (offset & 63);
+        localBits.getAndAccumulate((int) (offset >>> 6), mask, (a, b) -> a | b);
+    }
+
+    //redis的bitmap OR进本地镜像，offset 0是第一个字节的最高位
+    private void merge(byte[] bytes) {
+        int length = (int) Math.min(bytes.length, (numBits + 7) / 8);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    setLocal(((long) i << 3) + j);
+                }
+            }
+        }
+    }
+
+    private int wordCount() {
+        return (int) ((numBits + 63) >>> 6);
+    }
+
+    private byte[] rawKey() {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] tmpKey() {
+        return (key + ":rebuild").getBytes(StandardCharsets.UTF_8);
+    }
+}
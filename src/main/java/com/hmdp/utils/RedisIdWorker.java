@@ -1,36 +1,186 @@
 package com.hmdp.utils;
 
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局id：高32位为相对开始时间的秒数，低32位为按天自增的序列号
+ * segment-size大于1时每个节点一次INCRBY租用一段序列号，在本地用原子计数发放，
+ * 当前号段用掉80%时在后台预取下一段，号段之间由redis保证不重叠，多节点之间id不重复
+ */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     //开始的时间戳
     private static final long BEGIN_TIMESTAMP = 1704067200L;
     //序列号的位数
     private static final int COUNT_BIT = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    //最近一次格式化的日期，同一天内复用
+    private static volatile CachedDate cachedDate;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdProperties idProperties;
+
+    //keyPrefix -> 双缓冲的号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
     public long nextId(String keyPrefix){
         //1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        long timeStamp = timestamp(now);
         //2.生成序列号
         //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+date);
+        String date = date(now);
+        //2.2自增长，开启号段租用时从本地号段中取
+        long count = idProperties.getSegmentSize() > 1
+                ? nextCount(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:"+keyPrefix+":"+date);
 
         //3.拼接并返回
+        return compose(timeStamp, count);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * id的时间戳部分，相对开始时间的秒数
+     */
+    public static long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号按天计数，计数器key中的日期部分
+     */
+    public static String date(LocalDateTime now) {
+        long epochDay = now.toLocalDate().toEpochDay();
+        CachedDate cached = cachedDate;
+        if (cached == null || cached.epochDay != epochDay) {
+            cached = new CachedDate(epochDay, now.format(DATE_FORMATTER));
+            cachedDate = cached;
+        }
+        return cached.date;
+    }
+
+    public static long compose(long timeStamp, long count) {
         return timeStamp << COUNT_BIT | count;
     }
+
+    //无锁地从当前号段取号，号段用完或跨天时切换
+    private long nextCount(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.next.getAndIncrement();
+                if (count <= segment.end) {
+                    //剩余20%时预取下一段，只有取到这个号的线程会触发
+                    if (segment.end - count == idProperties.getSegmentSize() / 5) {
+                        prefetch(buffer, keyPrefix, date);
+                    }
+                    return count;
+                }
+            }
+            switchSegment(buffer, keyPrefix, date, segment);
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, String keyPrefix, String date) {
+        synchronized (buffer) {
+            if (buffer.next == null) {
+                buffer.next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), prefetchExecutor);
+            }
+        }
+    }
+
+    //优先使用预取的号段，没有预取、预取失败或已跨天时同步租用
+    private void switchSegment(SegmentBuffer buffer, String keyPrefix, String date, Segment exhausted) {
+        synchronized (buffer) {
+            if (buffer.current != exhausted) {
+                //其它线程已经切换过
+                return;
+            }
+            Segment segment = null;
+            Future<Segment> next = buffer.next;
+            buffer.next = null;
+            if (next != null) {
+                try {
+                    segment = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    log.error("预取id号段失败, keyPrefix={}", keyPrefix, e.getCause());
+                }
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = lease(keyPrefix, date);
+            }
+            buffer.current = segment;
+        }
+    }
+
+    //INCRBY icr:keyPrefix:date segmentSize，返回值为号段的最后一个号
+    private Segment lease(String keyPrefix, String date) {
+        long segmentSize = idProperties.getSegmentSize();
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("租用id号段失败: " + keyPrefix);
+        }
+        return new Segment(date, end - segmentSize + 1, end);
+    }
+
+    private static class CachedDate {
+        private final long epochDay;
+        private final String date;
+
+        CachedDate(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong next;
+        private final long end;
+
+        Segment(String date, long start, long end) {
+            this.date = date;
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Future<Segment> next;
+    }
 }
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * RedisReentrantLock的公共部分：
+ * 1.看门狗：一个线程每隔 watchdog-timeout/3 为本节点持有的所有锁续期，不需要每把锁一个定时器
+ * 2.释放通知：所有锁共用一个频道，消息内容为锁的key，唤醒本节点等待该锁的一个线程
+ * 目前作为通用组件提供，秒杀下单已改为按用户分道串行消费，不再需要分布式锁
+ */
+@Slf4j
+@Component
+public class RedisLockManager {
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.lock.watchdog-timeout:30s}")
+    private Duration watchdogTimeout;
+
+    //本节点的标识，与线程id拼接成锁的持有者
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    //需要续期的锁，key + 持有者 -> 锁
+    private final Map<String, Watched> watched = new ConcurrentHashMap<>();
+
+    //锁的key -> 等待该锁的线程
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService watchdog;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            Waiter waiter = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.semaphore.release();
+            }
+        }, new ChannelTopic(LOCK_RELEASED_CHANNEL));
+        long period = watchdogTimeout.toMillis() / 3;
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::renewAll, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        watchdog.shutdownNow();
+    }
+
+    public RedisReentrantLock getLock(String name) {
+        return new RedisReentrantLock(name, this);
+    }
+
+    /**
+     * 本节点当前由看门狗续期的锁的数量
+     */
+    public int watchedCount() {
+        return watched.size();
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    long watchdogTimeoutMillis() {
+        return watchdogTimeout.toMillis();
+    }
+
+    LuaScriptRegistry getLuaScriptRegistry() {
+        return luaScriptRegistry;
+    }
+
+    //重入时只登记一次，完全释放时移除
+    void watch(String key, String owner) {
+        watched.putIfAbsent(key + "@" + owner, new Watched(key, owner));
+    }
+
+    void unwatch(String key, String owner) {
+        watched.remove(key + "@" + owner);
+    }
+
+    Waiter addWaiter(String key) {
+        return waiters.compute(key, (k, waiter) -> {
+            if (waiter == null) {
+                waiter = new Waiter();
+            }
+            waiter.count.incrementAndGet();
+            return waiter;
+        });
+    }
+
+    void removeWaiter(String key, Waiter waiter) {
+        waiters.computeIfPresent(key, (k, w) -> w.count.decrementAndGet() == 0 ? null : w);
+    }
+
+    private void renewAll() {
+        for (Map.Entry<String, Watched> entry : watched.entrySet()) {
+            Watched lock = entry.getValue();
+            try {
+                Long result = luaScriptRegistry.execute(LuaScriptRegistry.REENTRANT_RENEW, Long.class,
+                        Collections.singletonList(lock.key), lock.owner, watchdogTimeout.toMillis());
+                if (result == null || result == 0) {
+                    //锁已经不存在或被其它线程持有，不再续期
+                    watched.remove(entry.getKey());
+                    log.warn("锁已丢失, 停止续期, key={}, owner={}", lock.key, lock.owner);
+                }
+            } catch (Exception e) {
+                //redis暂时不可用，下一个周期再试
+                log.error("锁续期失败, key={}", lock.key, e);
+            }
+        }
+    }
+
+    private static class Watched {
+        private final String key;
+        private final String owner;
+
+        Watched(String key, String owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+    }
+
+    static class Waiter {
+        private final Semaphore semaphore = new Semaphore(0);
+        private final AtomicInteger count = new AtomicInteger();
+
+        void await(long millis) throws InterruptedException {
+            semaphore.tryAcquire(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
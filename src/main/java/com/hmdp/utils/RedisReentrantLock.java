@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+
+/**
+ * 可重入的redis锁，锁是一个hash：field为 节点标识-线程id，value为重入次数，加锁和释放都在lua中完成
+ * tryLock(timeoutSec)使用固定的过期时间；tryLock()和lock(waitTime)由RedisLockManager的看门狗定期续期，
+ * 事务执行再久锁也不会中途过期，持有锁的节点宕机后最多一个看门狗周期就会自动释放
+ * 通过RedisLockManager.getLock获取
+ */
+public class RedisReentrantLock implements ILock {
+
+    private static final String KEY_PREFIX = "lock:";
+
+    private final String key;
+    private final RedisLockManager manager;
+
+    RedisReentrantLock(String name, RedisLockManager manager) {
+        this.key = KEY_PREFIX + name;
+        this.manager = manager;
+    }
+
+    /**
+     * 尝试获取锁，不等待，不续期
+     * @param timeoutSec 锁持有的超时时间，过期后自动释放；重入时只会延长已有的过期时间，不会缩短
+     */
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    /**
+     * 尝试获取锁，不等待，获取成功后由看门狗续期直到unlock
+     */
+    public boolean tryLock() {
+        if (tryAcquire(manager.watchdogTimeoutMillis()) != null) {
+            return false;
+        }
+        manager.watch(key, owner());
+        return true;
+    }
+
+    /**
+     * 获取锁，锁被其它线程持有时等待释放的通知，最多等待waitTime
+     * 获取成功后由看门狗续期直到unlock
+     * @return true代表获取锁成功，false代表等待超时
+     */
+    public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        //先登记等待，避免在获取失败和开始等待之间错过释放通知
+        RedisLockManager.Waiter waiter = manager.addWaiter(key);
+        try {
+            while (true) {
+                Long ttl = tryAcquire(manager.watchdogTimeoutMillis());
+                if (ttl == null) {
+                    manager.watch(key, owner());
+                    return true;
+                }
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                //最多等到锁过期，持有者宕机时不会收到通知
+                waiter.await(ttl < 0 ? remaining : Math.min(ttl, remaining));
+            }
+        } finally {
+            manager.removeWaiter(key, waiter);
+        }
+    }
+
+    /**
+     * 释放一次，重入次数减到0时删除锁并通知等待的线程
+     * @throws IllegalMonitorStateException 当前线程没有持有锁
+     */
+    @Override
+    public void unlock() {
+        String owner = owner();
+        Long result = manager.getLuaScriptRegistry().execute(LuaScriptRegistry.REENTRANT_UNLOCK, Long.class,
+                Collections.singletonList(key), owner, LOCK_RELEASED_CHANNEL);
+        if (result == null) {
+            throw new IllegalMonitorStateException("当前线程没有持有锁: " + key);
+        }
+        if (result == 1) {
+            manager.unwatch(key, owner);
+        }
+    }
+
+    //返回null表示获取成功，否则为锁的剩余时间
+    private Long tryAcquire(long leaseMillis) {
+        return manager.getLuaScriptRegistry().execute(LuaScriptRegistry.REENTRANT_LOCK, Long.class,
+                Collections.singletonList(key), owner(), leaseMillis);
+    }
+
+    private String owner() {
+        return manager.nodeId() + "-" + Thread.currentThread().getId();
+    }
+}
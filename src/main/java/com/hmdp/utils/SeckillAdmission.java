@@ -0,0 +1,221 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RATE_KEY;
+
+/**
+ * 秒杀下单前的准入控制，超出的请求在执行lua脚本之前直接拒绝：
+ * 1.本地令牌桶：按配置的速率补充，容量不超过剩余库存的stock-factor倍
+ * 2.全局配额：redis中每个代金券每秒一个计数器 seckill:rate:voucherId:second，
+ *   每个节点一次INCRBY租用lease-chunk个许可，在本地发放，不是每个请求都访问redis；
+ *   租到但本秒没有用完的许可随这一秒作废，不归还(下一秒是新的计数器，归还也没有意义)，
+ *   所以全局配额是上限，实际放行数最多比它少 节点数 * (lease-chunk - 1)
+ * 剩余库存由定时任务按stock-refresh间隔刷新，请求线程只读本地值
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillPartitioner seckillPartitioner;
+
+    //spring boot自动配置的定时任务线程池
+    @Resource
+    private ThreadPoolTaskScheduler taskScheduler;
+
+    //voucherId -> 限流状态，一段时间没有请求的自动移除
+    private final Cache<Long, Limiter> limiters = Caffeine.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedLocal = new LongAdder();
+    private final LongAdder shedGlobal = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        taskScheduler.scheduleWithFixedDelay(this::refreshStocks, seckillProperties.getAdmission().getStockRefresh().toMillis());
+    }
+
+    /**
+     * 尝试放行一个下单请求
+     * @return false表示需要拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        SeckillProperties.Admission config = seckillProperties.getAdmission();
+        if (!config.isEnabled()) {
+            return true;
+        }
+        SeckillProperties.Limit limit = config.getVouchers().getOrDefault(voucherId, config.getDefaults());
+        Limiter limiter = limiters.get(voucherId, k -> new Limiter());
+        //1.本地令牌桶，容量按剩余库存收紧
+        double capacity = Math.min(limit.getBurst(), Math.max(1, limiter.remainingStock * config.getStockFactor()));
+        if (!limiter.bucket.tryAcquire(limit.getRate(), capacity)) {
+            limiter.shedLocal.increment();
+            shedLocal.increment();
+            return false;
+        }
+        //2.全局配额
+        if (limit.getGlobalRate() > 0 && !acquireGlobal(voucherId, limiter, limit.getGlobalRate(), config.getLeaseChunk())) {
+            limiter.shedGlobal.increment();
+            shedGlobal.increment();
+            return false;
+        }
+        limiter.admitted.increment();
+        admitted.increment();
+        return true;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("admitted", admitted.sum());
+        map.put("shedLocal", shedLocal.sum());
+        map.put("shedGlobal", shedGlobal.sum());
+        Map<Long, Object> vouchers = new LinkedHashMap<>();
+        limiters.asMap().forEach((voucherId, limiter) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("admitted", limiter.admitted.sum());
+            stats.put("shedLocal", limiter.shedLocal.sum());
+            stats.put("shedGlobal", limiter.shedGlobal.sum());
+            stats.put("remainingStock", limiter.remainingStock);
+            vouchers.put(voucherId, stats);
+        });
+        map.put("vouchers", vouchers);
+        return map;
+    }
+
+    //从本地租到的许可中取一个，用完时再租一批，本秒的全局配额用完后不再访问redis
+    private boolean acquireGlobal(Long voucherId, Limiter limiter, long globalRate, int chunk) {
+        long second = System.currentTimeMillis() / 1000;
+        while (true) {
+            if (limiter.leaseSecond == second && limiter.leased.getAndDecrement() > 0) {
+                return true;
+            }
+            if (limiter.exhaustedSecond == second) {
+                return false;
+            }
+            synchronized (limiter) {
+                if (limiter.leaseSecond == second && limiter.leased.get() > 0) {
+                    //其它线程已经租到了
+                    continue;
+                }
+                if (limiter.exhaustedSecond == second) {
+                    return false;
+                }
+                //INCRBY seckill:rate:voucherId:second chunk，第一次租用时设置过期
+                String key = SECKILL_RATE_KEY + voucherId + ":" + second;
+                Long used = stringRedisTemplate.opsForValue().increment(key, chunk);
+                if (used != null && used == chunk) {
+                    stringRedisTemplate.expire(key, 2, TimeUnit.SECONDS);
+                }
+                long granted = used == null ? 0 : Math.min(chunk, globalRate - (used - chunk));
+                if (granted <= 0) {
+                    limiter.exhaustedSecond = second;
+                    return false;
+                }
+                limiter.leased.set(granted);
+                limiter.leaseSecond = second;
+            }
+        }
+    }
+
+    //定期读取各代金券的库存桶之和，所有代金券一次pipeline
+    private void refreshStocks() {
+        if (!seckillProperties.getAdmission().isEnabled()) {
+            return;
+        }
+        List<Long> voucherIds = new ArrayList<>(limiters.asMap().keySet());
+        if (voucherIds.isEmpty()) {
+            return;
+        }
+        try {
+            int buckets = seckillPartitioner.buckets();
+            List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long voucherId : voucherIds) {
+                    for (int b = 0; b < buckets; b++) {
+                        connection.stringCommands().get(seckillPartitioner.stockKey(voucherId, b).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return null;
+            });
+            for (int i = 0; i < voucherIds.size(); i++) {
+                long stock = 0;
+                for (int b = 0; b < buckets; b++) {
+                    Object value = values.get(i * buckets + b);
+                    stock += value == null ? 0 : Math.max(0, Long.parseLong(value.toString()));
+                }
+                Limiter limiter = limiters.getIfPresent(voucherIds.get(i));
+                if (limiter != null) {
+                    limiter.remainingStock = stock;
+                }
+            }
+        } catch (Exception e) {
+            log.error("读取秒杀库存失败", e);
+        }
+    }
+
+    private static class Limiter {
+        private final TokenBucket bucket = new TokenBucket();
+        //第一次刷新之前不按库存收紧
+        private volatile long remainingStock = Long.MAX_VALUE / 4;
+        //本秒租到的全局许可
+        private final AtomicLong leased = new AtomicLong();
+        private volatile long leaseSecond;
+        private volatile long exhaustedSecond;
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder shedLocal = new LongAdder();
+        private final LongAdder shedGlobal = new LongAdder();
+    }
+
+    /**
+     * 令牌桶，第一次使用时装满，之后按rate补充，不超过capacity
+     */
+    static class TokenBucket {
+        private double tokens = -1;
+        private long lastNanos;
+
+        boolean tryAcquire(double rate, double capacity) {
+            return tryAcquire(rate, capacity, System.nanoTime());
+        }
+
+        synchronized boolean tryAcquire(double rate, double capacity, long now) {
+            if (tokens < 0) {
+                //第一次使用时装满
+                tokens = capacity;
+            } else {
+                tokens = Math.min(capacity, tokens + (now - lastNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+            }
+            lastNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+}
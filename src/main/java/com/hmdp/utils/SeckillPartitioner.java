@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀数据的分区规则：每个代金券的库存拆成K个桶，第b个桶放在分区 (voucherId + b) % N，
+ * 同一分区的key使用相同的hash tag {p}，一次lua调用只访问一个slot，可以部署在redis cluster上
+ * 每个分区有自己的订单stream和下单用户集合，用户固定从 userId % K 号桶开始尝试，
+ * 下单用户只记录在这个桶所在的主分区，不论库存来自哪个分区，保证一人一单的判断落在同一个集合
+ */
+@Component
+public class SeckillPartitioner {
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    public int partitions() {
+        return seckillProperties.getPartitions();
+    }
+
+    public int buckets() {
+        return seckillProperties.getStockBuckets();
+    }
+
+    public int partitionOf(long voucherId, int bucket) {
+        return (int) ((voucherId + bucket) % partitions());
+    }
+
+    /**
+     * 代金券的库存桶所在的分区，也就是可能有下单用户集合的分区
+     */
+    public Set<Integer> partitionsOf(long voucherId) {
+        Set<Integer> partitions = new LinkedHashSet<>();
+        for (int b = 0; b < buckets(); b++) {
+            partitions.add(partitionOf(voucherId, b));
+        }
+        return partitions;
+    }
+
+    /**
+     * 用户下单时第一个尝试的库存桶 userId % K
+     */
+    public int homeBucket(long userId) {
+        return (int) (userId % buckets());
+    }
+
+    /**
+     * 用户的主分区，即 userId % K 号桶所在的分区
+     */
+    public int homePartition(long voucherId, long userId) {
+        return partitionOf(voucherId, homeBucket(userId));
+    }
+
+    //用户所在的下单用户集合 seckill:order:{home}:voucherId
+    public String buyerKey(long voucherId, long userId) {
+        return orderKey(homePartition(voucherId, userId), voucherId);
+    }
+
+    //用户在主分区的占位记录 seckill:claim:{home}:voucherId
+    public String homeClaimKey(long voucherId, long userId) {
+        return claimKey(homePartition(voucherId, userId), voucherId);
+    }
+
+    //seckill:stock:{p}:voucherId:bucket
+    public String stockKey(long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + tag(partitionOf(voucherId, bucket)) + ":" + voucherId + ":" + bucket;
+    }
+
+    //seckill:order:{p}:voucherId
+    public String orderKey(int partition, long voucherId) {
+        return SECKILL_ORDER_KEY + tag(partition) + ":" + voucherId;
+    }
+
+    //seckill:claim:{p}:voucherId，zset member为userId，score为占位时间(epoch秒)
+    public String claimKey(int partition, long voucherId) {
+        return SECKILL_CLAIM_KEY + tag(partition) + ":" + voucherId;
+    }
+
+    //stream.orders:{p}
+    public String streamKey(int partition) {
+        return SECKILL_ORDER_STREAM + ":" + tag(partition);
+    }
+
+    //seckill:window:{p}:voucherId，秒杀时间窗口 hash begin/end，epoch秒
+    public String windowKey(int partition, long voucherId) {
+        return SECKILL_WINDOW_KEY + tag(partition) + ":" + voucherId;
+    }
+
+    //icr:order:{p}:yyyy:MM:dd，秒杀订单id的序列号计数器，每个分区一个
+    public String orderIdKey(int partition, String date) {
+        return SECKILL_ORDER_ID_KEY + tag(partition) + ":" + date;
+    }
+
+    public List<String> streamKeys() {
+        List<String> keys = new ArrayList<>(partitions());
+        for (int p = 0; p < partitions(); p++) {
+            keys.add(streamKey(p));
+        }
+        return keys;
+    }
+
+    /**
+     * 库存平均分到各个桶，余数放在前面的桶
+     */
+    public int[] splitStock(int stock) {
+        int[] stocks = new int[buckets()];
+        for (int b = 0; b < stocks.length; b++) {
+            stocks[b] = stock / stocks.length + (b < stock % stocks.length ? 1 : 0);
+        }
+        return stocks;
+    }
+
+    /**
+     * 用户下单时依次尝试的分区，每个分区内按顺序尝试的库存桶，第一个为用户的主分区
+     */
+    public List<Route> route(long voucherId, long userId, String date) {
+        int buckets = buckets();
+        int home = homeBucket(userId);
+        Map<Integer, Route> routes = new LinkedHashMap<>();
+        for (int i = 0; i < buckets; i++) {
+            int bucket = (home + i) % buckets;
+            int partition = partitionOf(voucherId, bucket);
+            routes.computeIfAbsent(partition, p -> {
+                List<String> keys = new ArrayList<>();
+                keys.add(orderKey(p, voucherId));
+                keys.add(streamKey(p));
+                keys.add(orderIdKey(p, date));
+                keys.add(windowKey(p, voucherId));
+                keys.add(claimKey(p, voucherId));
+                return new Route(p, routes.isEmpty(), keys);
+            }).getKeys().add(stockKey(voucherId, bucket));
+        }
+        return new ArrayList<>(routes.values());
+    }
+
+    private String tag(int partition) {
+        return "{" + partition + "}";
+    }
+
+    /**
+     * 一次lua调用的参数：KEYS[1]为下单用户集合(只有主分区使用)，KEYS[2]为订单stream，KEYS[3]为订单id计数器，KEYS[4]为秒杀时间窗口，
+     * KEYS[5]为占位记录(只有主分区使用)，之后为依次尝试的库存桶
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Route {
+        private int partition;
+        private boolean home;
+        private List<String> keys;
+    }
+}
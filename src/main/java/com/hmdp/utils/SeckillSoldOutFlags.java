@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 代金券售罄标记，保存在本地，售罄后的请求不再访问redis
+ * 标记和清除都通过pub/sub广播给所有节点，消息内容为 +voucherId / -voucherId；
+ * 标记有存活时间，避免补货和售罄的广播乱序时一直误判为售罄
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutFlags {
+
+    private static final String SET = "+";
+    private static final String CLEAR = "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.sold-out-ttl:30s}")
+    private Duration soldOutTtl;
+
+    private Cache<Long, Boolean> soldOut;
+
+    @PostConstruct
+    private void init() {
+        soldOut = Caffeine.newBuilder().expireAfterWrite(soldOutTtl).build();
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            Long voucherId = Long.valueOf(body.substring(1));
+            if (body.startsWith(SET)) {
+                soldOut.put(voucherId, Boolean.TRUE);
+            } else {
+                soldOut.invalidate(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 标记售罄并广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SET + voucherId);
+        log.info("代金券已售罄, voucherId={}", voucherId);
+    }
+
+    /**
+     * 补货后清除标记并广播
+     */
+    public void clear(Long voucherId) {
+        soldOut.invalidate(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+}
@@ -2,9 +2,7 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.data.redis.support.collections.DefaultRedisList;
 
 import java.util.Collection;
@@ -13,21 +11,20 @@ import java.util.concurrent.TimeUnit;
 
 public class SimpleRedisLock implements ILock {
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 释放锁的脚本通过注册表以EVALSHA执行
+     */
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, LuaScriptRegistry luaScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.luaScriptRegistry = luaScriptRegistry;
     }
 
     private StringRedisTemplate stringRedisTemplate;
     private String name;
+    private LuaScriptRegistry luaScriptRegistry;
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
 
     @Override
     public boolean tryLock(long timeoutSec) {
@@ -42,7 +39,7 @@ public class SimpleRedisLock implements ILock {
     @Override
     public void unlock() {
         //调用Luas
-        stringRedisTemplate.execute(UNLOCK_SCRIPT,
+        luaScriptRegistry.execute(LuaScriptRegistry.UNLOCK, Long.class,
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
     }
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Smile二进制JSON格式，体积更小
+ * 格式：MAGIC | id | 版本 | 类型 | smile数据，逻辑过期时间由 LogicalEnvelope 在外层携带
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final String NAME = "smile";
+
+    private static final byte ID = 1;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+    //数据类型，目前只有普通数据
+    private static final byte KIND_PLAIN = 0;
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            out.write(MAGIC);
+            out.write(ID);
+            out.write(VERSION);
+            out.write(KIND_PLAIN);
+            mapper.writeValue(out, value);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("smile序列化失败", e);
+        }
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        checkHeader(bytes, offset, length);
+        try {
+            return mapper.readValue(bytes, offset + HEADER_LENGTH, length - HEADER_LENGTH, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("smile反序列化失败", e);
+        }
+    }
+
+    @Override
+    public <R> LogicalValue<R> decodeLogical(byte[] bytes, Class<R> type) {
+        //smile数据本身不带逻辑过期时间，批量查询写入的普通缓存按已过期处理
+        return new LogicalValue<>(0, decode(bytes, type));
+    }
+
+    private void checkHeader(byte[] bytes, int offset, int length) {
+        if (length < HEADER_LENGTH || bytes[offset] != MAGIC || bytes[offset + 1] != ID) {
+            throw new IllegalArgumentException("不是smile编码的缓存数据");
+        }
+        if (bytes[offset + 2] > VERSION) {
+            throw new IllegalArgumentException("不支持的smile缓存格式版本: " + bytes[offset + 2]);
+        }
+        if (bytes[offset + 3] != KIND_PLAIN) {
+            throw new IllegalArgumentException("不支持的smile缓存数据类型: " + bytes[offset + 3]);
+        }
+    }
+}
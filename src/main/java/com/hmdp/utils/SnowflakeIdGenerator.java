@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 本地snowflake id：0 | 1位标记(恒为1，与RedisIdWorker的id区分) | 40位毫秒时间戳 | 10位worker id | 12位序列号
+ * worker id启动时通过 SET id:worker:n owner NX PX ttl 租用，后台定期续期，租约过期前没有续期成功时停止发号
+ * 时间戳和序列号保存在一个AtomicLong中CAS更新：时钟回拨或同一毫秒序列号用完时沿用(借用)下一毫秒，
+ * 领先系统时钟超过max-backward时拒绝发号
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    //开始的时间戳，毫秒
+    static final long BEGIN_MILLIS = 1704067200000L;
+    static final int SEQUENCE_BITS = 12;
+    static final int WORKER_BITS = 10;
+    static final int TIMESTAMP_BITS = 40;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long FLAG = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    @Resource
+    private IdProperties idProperties;
+
+    //租约持有者标识
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString(true);
+
+    //高位为上一次发号的毫秒时间戳(相对开始时间)，低12位为序列号
+    private final AtomicLong state = new AtomicLong();
+
+    private volatile long workerId = -1;
+
+    //租约在本地认为有效的截止时间，续期请求发出前的时间 + ttl
+    private volatile long leaseUntil;
+
+    private ScheduledExecutorService heartbeat;
+
+    //系统时钟，测试时替换
+    private final LongSupplier clock;
+
+    public SnowflakeIdGenerator() {
+        this.clock = System::currentTimeMillis;
+    }
+
+    /**
+     * 测试用：固定worker id，不租用也不续期
+     */
+    SnowflakeIdGenerator(IdProperties idProperties, long workerId, LongSupplier clock) {
+        this.idProperties = idProperties;
+        this.workerId = workerId;
+        this.leaseUntil = Long.MAX_VALUE;
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!idProperties.getGenerators().containsValue(IdProperties.Generator.SNOWFLAKE)) {
+            //没有keyPrefix使用snowflake，不租用worker id
+            return;
+        }
+        acquire();
+        long period = idProperties.getSnowflake().getLeaseTtl().toMillis() / 3;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        if (heartbeat == null) {
+            return;
+        }
+        heartbeat.shutdownNow();
+        if (workerId >= 0) {
+            //主动释放worker id，和释放锁一样只删除自己持有的
+            luaScriptRegistry.execute(LuaScriptRegistry.UNLOCK, Long.class,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), owner);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0 || clock.getAsLong() > leaseUntil) {
+            throw new IllegalStateException("snowflake worker id租约无效, 暂停发号");
+        }
+        long maxBackward = idProperties.getSnowflake().getMaxBackward().toMillis();
+        while (true) {
+            long now = clock.getAsLong() - BEGIN_MILLIS;
+            long old = state.get();
+            long last = old >>> SEQUENCE_BITS;
+            long next;
+            if (now > last) {
+                //1.进入新的毫秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                //2.同一毫秒或时钟回拨，序列号加一，用完时进位到下一毫秒
+                if (last - now > maxBackward) {
+                    throw new IllegalStateException("时钟回拨" + (last - now) + "ms, 超过允许的" + maxBackward + "ms");
+                }
+                next = old + 1;
+            }
+            if (state.compareAndSet(old, next)) {
+                return FLAG | (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                        | worker << SEQUENCE_BITS
+                        | (next & ((1L << SEQUENCE_BITS) - 1));
+            }
+        }
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    public long workerId() {
+        return workerId;
+    }
+
+    //从随机位置开始依次尝试，避免多个节点同时启动时争抢同一个id
+    private void acquire() {
+        long ttl = idProperties.getSnowflake().getLeaseTtl().toMillis();
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long begin = clock.getAsLong();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, owner, ttl, TimeUnit.MILLISECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                leaseUntil = begin + ttl;
+                workerId = id;
+                log.info("snowflake worker id租用成功, workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的snowflake worker id");
+    }
+
+    private void renew() {
+        long ttl = idProperties.getSnowflake().getLeaseTtl().toMillis();
+        try {
+            long begin = clock.getAsLong();
+            Long result = luaScriptRegistry.execute(LuaScriptRegistry.LEASE_RENEW, Long.class,
+                    Collections.singletonList(ID_WORKER_KEY + workerId), owner, ttl);
+            if (result != null && result == 1) {
+                leaseUntil = begin + ttl;
+                return;
+            }
+            //租约已经丢失，worker id可能已被其它节点使用，换一个新的
+            log.error("snowflake worker id租约丢失, workerId={}", workerId);
+            workerId = -1;
+            acquire();
+        } catch (Exception e) {
+            //redis暂时不可用，下次再试，租约到期后nextId会拒绝发号
+            log.error("snowflake worker id续期失败, workerId={}", workerId, e);
+        }
+    }
+}
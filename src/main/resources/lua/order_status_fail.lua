@@ -0,0 +1,15 @@
+--订单处理失败，已经写入数据库的订单不会被改为失败
+local key = KEYS[1]
+local reason = ARGV[1]
+local ttl = ARGV[2]
+local channel = ARGV[3]
+local orderId = ARGV[4]
+
+if (redis.call('hget', key, 'status') == 'PERSISTED') then
+    return 0
+end
+redis.call('hmset', key, 'status', 'FAILED', 'reason', reason)
+redis.call('expire', key, ttl)
+--通知等待该订单结果的请求
+redis.call('publish', channel, orderId)
+return 1
@@ -0,0 +1,23 @@
+--可重入锁，hash结构 field为持有者标识，value为重入次数
+local key = KEYS[1]
+local owner = ARGV[1]
+local ttl = tonumber(ARGV[2])
+
+--1.锁不存在，获取锁并设置过期时间
+if (redis.call('exists', key) == 0) then
+    redis.call('hincrby', key, owner, 1)
+    redis.call('pexpire', key, ttl)
+    return nil
+end
+
+--2.是自己持有，重入次数加一；过期时间只延长不缩短，避免看门狗续期的锁被较短的超时时间提前释放
+if (redis.call('hexists', key, owner) == 1) then
+    redis.call('hincrby', key, owner, 1)
+    if (redis.call('pttl', key) < ttl) then
+        redis.call('pexpire', key, ttl)
+    end
+    return nil
+end
+
+--3.被其它线程持有，返回锁的剩余时间
+return redis.call('pttl', key)
@@ -0,0 +1,5 @@
+--看门狗续期，锁仍由该持有者持有时才续期
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
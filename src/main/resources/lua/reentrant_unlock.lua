@@ -0,0 +1,20 @@
+--释放可重入锁
+local key = KEYS[1]
+local owner = ARGV[1]
+--频道不是key，通过ARGV传入，集群下KEYS只有锁本身一个slot
+local channel = ARGV[2]
+
+--1.不是自己持有的锁
+if (redis.call('hexists', key, owner) == 0) then
+    return nil
+end
+
+--2.重入次数减一，还有剩余时返回0
+if (redis.call('hincrby', key, owner, -1) > 0) then
+    return 0
+end
+
+--3.完全释放，通知等待的线程
+redis.call('del', key)
+redis.call('publish', channel, key)
+return 1
@@ -0,0 +1,95 @@
+--1.参数
+--1.1优惠券id
+local voucherId = ARGV[1]
+
+--1.2用户id
+local userId = ARGV[2]
+
+--1.3订单id的时间戳部分，相对开始时间的秒数
+local timestamp = tonumber(ARGV[3])
+
+--1.4分区号和分区数，不同分区的序列号错开，保证订单id不重复
+local partition = tonumber(ARGV[4])
+local partitions = tonumber(ARGV[5])
+
+--1.5本地生成的订单id(snowflake)，为空时由脚本按天自增生成
+local localOrderId = ARGV[6]
+
+--1.6当前时间，epoch秒
+local now = tonumber(ARGV[7])
+
+--1.7本分区是否为用户的主分区，下单用户只记录在主分区的集合中，不论库存来自哪个分区
+local home = ARGV[8] == '1'
+
+--1.8主分区没有库存时是否先占位，由调用方在其它分区都没有库存时移除；
+--   调用方异常退出没有移除的占位，由对账任务按占位时间清理
+local claim = ARGV[9] == '1'
+
+--2.数据key，同一个分区的key带有相同的hash tag，位于同一个slot
+--2.1订单key seckill:order:{p}:voucherId，只有主分区使用
+local orderKey = KEYS[1]
+
+--2.2订单stream stream.orders:{p}
+local streamKey = KEYS[2]
+
+--2.3订单id计数器 icr:order:{p}:yyyy:MM:dd
+local idKey = KEYS[3]
+
+--2.4秒杀时间窗口 seckill:window:{p}:voucherId，hash begin/end
+local windowKey = KEYS[4]
+
+--2.5占位记录 seckill:claim:{p}:voucherId，zset score为占位时间，只有主分区使用
+local claimKey = KEYS[5]
+
+--2.6库存桶 seckill:stock:{p}:voucherId:bucket，KEYS[6]开始按顺序尝试
+
+--3.脚本业务
+--3.0判断秒杀时间，没有窗口数据时(预热之前创建的券)不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if (window[1] and now < tonumber(window[1])) then
+    --尚未开始
+    return {3}
+end
+if (window[2] and now > tonumber(window[2])) then
+    --已经结束
+    return {4}
+end
+
+--3.1判断业务是否下单 SISMEMBER orderKey userID，非主分区由调用方在主分区判断过
+if (home and redis.call('sismember', orderKey, userId) == 1) then
+    --存在，是重复下单
+    return {2}
+end
+
+--3.2依次尝试本分区的库存桶
+for i = 6, #KEYS do
+    local stock = tonumber(redis.call('get', KEYS[i]))
+    if (stock ~= nil and stock > 0) then
+        --3.3 扣库存 incrby stockKey -1
+        redis.call('incrby', KEYS[i], -1)
+        --3.4 下单 sadd orderKey userID，非主分区的下单用户已经在主分区占位
+        if (home) then
+            redis.call('sadd', orderKey, userId)
+        end
+        --3.5 发送消息到队列当中 XADD stream.orders:{p} * k1 v1 k2 v2...
+        if (localOrderId ~= nil and localOrderId ~= '') then
+            redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', localOrderId)
+            return {0}
+        end
+        --3.6 生成订单id，序列号最高位为1，与RedisIdWorker.nextId("order")生成的id区分开
+        local count = redis.call('incr', idKey)
+        local seq = 2147483648 + (count - 1) * partitions + partition
+        --lua的数字是double，无法精确表示64位id，用16进制字符串写入消息
+        local orderId = string.format('0x%x%08x', timestamp, seq)
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+        return {0, seq}
+    end
+end
+
+--3.7本分区的库存桶都已售完，返回1；需要占位时记录到下单用户集合，避免并发请求在其它分区重复下单，
+--   同时记录占位时间，调用方没有移除的占位超时后由对账任务清理
+if (home and claim) then
+    redis.call('sadd', orderKey, userId)
+    redis.call('zadd', claimKey, now, userId)
+end
+return {1}
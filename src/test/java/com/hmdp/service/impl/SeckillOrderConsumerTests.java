@@ -0,0 +1,165 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.OrderBatchResult;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillPartitioner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisSetCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SeckillOrderConsumerTests {
+
+    private static final String STREAM = "stream.orders:{0}";
+    private static final long VOUCHER_ID = 10;
+
+    private final SeckillOrderConsumer consumer = new SeckillOrderConsumer();
+    private final SeckillPartitioner seckillPartitioner = new SeckillPartitioner();
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+    private final OrderStatusTracker orderStatusTracker = mock(OrderStatusTracker.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOps = mock(StreamOperations.class);
+    private final RedisSetCommands setCommands = mock(RedisSetCommands.class);
+    private final RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+    private ExecutorService[] lanes;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        SeckillProperties properties = new SeckillProperties();
+        properties.setPartitions(2);
+        properties.setStockBuckets(2);
+        ReflectionTestUtils.setField(seckillPartitioner, "seckillProperties", properties);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.setCommands()).thenReturn(setCommands);
+        when(connection.stringCommands()).thenReturn(stringCommands);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOps);
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(inv -> {
+            ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection);
+            return new ArrayList<>();
+        });
+        //两个写库通道，userId为偶数的在0号通道，奇数的在1号通道
+        lanes = new ExecutorService[]{Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor()};
+        ReflectionTestUtils.setField(consumer, "lanes", lanes);
+        ReflectionTestUtils.setField(consumer, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(consumer, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(consumer, "seckillPartitioner", seckillPartitioner);
+        ReflectionTestUtils.setField(consumer, "orderStatusTracker", orderStatusTracker);
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    @Test
+    void testSoldOutOrdersAreReleasedInRedis() {
+        when(voucherOrderService.createVoucherOrders(anyList())).thenAnswer(inv -> {
+            List<VoucherOrder> orders = inv.getArgument(0);
+            OrderBatchResult result = new OrderBatchResult();
+            result.getSoldOut().addAll(orders);
+            return result;
+        });
+
+        consumer.handleRecords(STREAM, Collections.singletonList(record("1-0", 101, 3)));
+
+        //从用户3的主分区下单用户集合移除，归还一个库存到 3 % 2 = 1 号桶
+        verify(setCommands).sRem(bytes(seckillPartitioner.buyerKey(VOUCHER_ID, 3)), bytes("3"));
+        verify(stringCommands).incr(bytes(seckillPartitioner.stockKey(VOUCHER_ID, 1)));
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of("1-0"));
+        verify(orderStatusTracker).failed(101L, "库存不足");
+    }
+
+    @Test
+    void testAcceptedOrdersAreNotReleased() {
+        when(voucherOrderService.createVoucherOrders(anyList())).thenAnswer(inv -> {
+            OrderBatchResult result = new OrderBatchResult();
+            result.getAccepted().addAll(inv.getArgument(0));
+            return result;
+        });
+
+        consumer.handleRecords(STREAM, Collections.singletonList(record("1-0", 101, 3)));
+
+        verifyNoInteractions(setCommands, stringCommands);
+        verify(orderStatusTracker, never()).failed(anyLong(), anyString());
+    }
+
+    @Test
+    void testOnlySuccessfulLanesAreAcknowledged() {
+        //用户3所在的1号通道写库失败
+        when(voucherOrderService.createVoucherOrders(anyList())).thenAnswer(inv -> {
+            List<VoucherOrder> orders = inv.getArgument(0);
+            if (orders.stream().anyMatch(order -> order.getUserId() == 3)) {
+                throw new QueryTimeoutException("timeout");
+            }
+            OrderBatchResult result = new OrderBatchResult();
+            result.getAccepted().addAll(orders);
+            return result;
+        });
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> consumer.handleRecords(STREAM,
+                Arrays.asList(record("1-0", 101, 2), record("2-0", 102, 3), record("3-0", 103, 4))));
+
+        //0号通道的两条消息用一条XACK确认，1号通道的消息留在pending-list中
+        assertTrue(e.getCause() instanceof QueryTimeoutException);
+        verify(streamOps).acknowledge(STREAM, SECKILL_ORDER_GROUP, RecordId.of("1-0"), RecordId.of("3-0"));
+        verifyNoMoreInteractions(streamOps);
+        verify(orderStatusTracker).persisted(argThat(orders -> orders.size() == 2));
+    }
+
+    @Test
+    void testAllLanesAcknowledgedTogether() {
+        when(voucherOrderService.createVoucherOrders(anyList())).thenAnswer(inv -> {
+            OrderBatchResult result = new OrderBatchResult();
+            result.getAccepted().addAll(inv.getArgument(0));
+            return result;
+        });
+
+        consumer.handleRecords(STREAM, Arrays.asList(record("1-0", 101, 2), record("2-0", 102, 3)));
+
+        //每个通道一个事务
+        verify(voucherOrderService, times(2)).createVoucherOrders(anyList());
+        ArgumentCaptor<RecordId> ids = ArgumentCaptor.forClass(RecordId.class);
+        verify(streamOps).acknowledge(eq(STREAM), eq(SECKILL_ORDER_GROUP), ids.capture());
+        assertEquals(new HashSet<>(Arrays.asList(RecordId.of("1-0"), RecordId.of("2-0"))), new HashSet<>(ids.getAllValues()));
+    }
+
+    static MapRecord<String, Object, Object> record(String id, long orderId, long userId) {
+        Map<Object, Object> value = new HashMap<>();
+        value.put("id", String.valueOf(orderId));
+        value.put("userId", String.valueOf(userId));
+        value.put("voucherId", String.valueOf(VOUCHER_ID));
+        return StreamRecords.newRecord().in(STREAM).withId(RecordId.of(id)).ofMap(value);
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
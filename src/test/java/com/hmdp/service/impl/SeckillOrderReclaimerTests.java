@@ -0,0 +1,174 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillPartitioner;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SeckillOrderReclaimerTests {
+
+    private static final String OWNER = "c1";
+
+    private final SeckillOrderReclaimer reclaimer = new SeckillOrderReclaimer();
+    private final SeckillProperties properties = new SeckillProperties();
+    private final SeckillPartitioner seckillPartitioner = new SeckillPartitioner();
+    private final SeckillOrderConsumer seckillOrderConsumer = mock(SeckillOrderConsumer.class);
+    private final OrderStatusTracker orderStatusTracker = mock(OrderStatusTracker.class);
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOps = mock(StreamOperations.class);
+    private final RedisStreamCommands streamCommands = mock(RedisStreamCommands.class);
+    private String stream;
+
+    //模拟stream中的消息，XCLAIM只返回其中存在的
+    private final Map<String, Map<String, String>> messages = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        properties.setPartitions(1);
+        ReflectionTestUtils.setField(seckillPartitioner, "seckillProperties", properties);
+        stream = seckillPartitioner.streamKey(0);
+
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.streamCommands()).thenReturn(streamCommands);
+        when(streamCommands.xClaim(any(), anyString(), anyString(), any(RedisStreamCommands.XClaimOptions.class))).thenAnswer(inv -> {
+            RedisStreamCommands.XClaimOptions options = inv.getArgument(3);
+            List<ByteRecord> records = new ArrayList<>();
+            for (String id : options.getIdsAsStringArray()) {
+                Map<String, String> value = messages.get(id);
+                if (value != null) {
+                    records.add(byteRecord(id, value));
+                }
+            }
+            return records;
+        });
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection));
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOps);
+        when(seckillOrderConsumer.namePrefix()).thenReturn(OWNER);
+
+        ReflectionTestUtils.setField(reclaimer, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(reclaimer, "seckillOrderConsumer", seckillOrderConsumer);
+        ReflectionTestUtils.setField(reclaimer, "seckillProperties", properties);
+        ReflectionTestUtils.setField(reclaimer, "seckillPartitioner", seckillPartitioner);
+        ReflectionTestUtils.setField(reclaimer, "orderStatusTracker", orderStatusTracker);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testOnlyMessagesIdleLongerThanMinIdleAreClaimed() {
+        //默认min-idle为30s，1-0已空闲1分钟，2-0刚投递
+        pending(message("1-0", Duration.ofMinutes(1), 1), message("2-0", Duration.ofSeconds(1), 1));
+
+        reclaimer.reclaim();
+
+        ArgumentCaptor<RedisStreamCommands.XClaimOptions> options = ArgumentCaptor.forClass(RedisStreamCommands.XClaimOptions.class);
+        verify(streamCommands).xClaim(eq(bytes(stream)), eq(SECKILL_ORDER_GROUP), eq(OWNER + "-reclaimer"), options.capture());
+        assertArrayEquals(new String[]{"1-0"}, options.getValue().getIdsAsStringArray());
+        //XCLAIM自己也带上min-idle，其它节点刚接管的消息不会被重复接管
+        assertEquals(Duration.ofSeconds(30), options.getValue().getMinIdleTime());
+
+        ArgumentCaptor<List<MapRecord<String, Object, Object>>> records = ArgumentCaptor.forClass(List.class);
+        verify(seckillOrderConsumer).handleRecords(eq(stream), records.capture());
+        assertEquals(1, records.getValue().size());
+        assertEquals("1-0", records.getValue().get(0).getId().getValue());
+        assertEquals(1L, reclaimer.stats().get("claimed"));
+        assertEquals(1L, reclaimer.stats().get("recovered"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testMessageOverMaxDeliveriesGoesToDeadLetterQueue() {
+        //已投递5次，XCLAIM后为第6次，超过上限5
+        pending(message("1-0", Duration.ofMinutes(1), 5));
+
+        reclaimer.reclaim();
+
+        ArgumentCaptor<MapRecord<String, String, String>> dead = ArgumentCaptor.forClass(MapRecord.class);
+        verify(streamOps).add(dead.capture());
+        assertEquals(SECKILL_ORDER_DLQ, dead.getValue().getStream());
+        Map<String, String> fields = dead.getValue().getValue();
+        assertEquals("1-0", fields.get("originId"));
+        assertEquals("6", fields.get("deliveries"));
+        assertEquals("c0", fields.get("consumer"));
+        assertEquals(stream, fields.get("stream"));
+        assertEquals("0x65", fields.get("id"));
+        verify(streamOps).acknowledge(stream, SECKILL_ORDER_GROUP, RecordId.of("1-0"));
+        verify(orderStatusTracker).failed(101L, "订单处理失败");
+        verify(seckillOrderConsumer, never()).handleRecords(anyString(), anyList());
+        assertEquals(1L, reclaimer.stats().get("deadLettered"));
+    }
+
+    @Test
+    void testBatchFailureFallsBackToSingleRecords() {
+        pending(message("1-0", Duration.ofMinutes(1), 1), message("2-0", Duration.ofMinutes(1), 1));
+        //整批失败，逐条重试时只有2-0失败
+        doThrow(new IllegalStateException("batch")).when(seckillOrderConsumer).handleRecords(eq(stream), argThat(list -> list.size() == 2));
+        doThrow(new IllegalStateException("2-0")).when(seckillOrderConsumer).handleRecords(eq(stream),
+                argThat(list -> list.size() == 1 && "2-0".equals(list.get(0).getId().getValue())));
+
+        reclaimer.reclaim();
+
+        verify(seckillOrderConsumer, times(3)).handleRecords(eq(stream), anyList());
+        assertEquals(1L, reclaimer.stats().get("recovered"));
+        assertEquals(1L, reclaimer.stats().get("failed"));
+    }
+
+    @Test
+    void testDeletedMessagesAreSkipped() {
+        pending(message("1-0", Duration.ofMinutes(1), 1));
+        //消息已被XDEL，XCLAIM不返回
+        messages.clear();
+
+        reclaimer.reclaim();
+
+        verify(seckillOrderConsumer, never()).handleRecords(anyString(), anyList());
+        assertEquals(0L, reclaimer.stats().get("claimed"));
+    }
+
+    private void pending(PendingMessage... pending) {
+        when(streamOps.pending(eq(stream), eq(SECKILL_ORDER_GROUP), any(Range.class), anyLong()))
+                .thenReturn(new PendingMessages(SECKILL_ORDER_GROUP, Arrays.asList(pending)));
+    }
+
+    //订单id为lua中生成的16进制
+    private PendingMessage message(String id, Duration idle, long deliveries) {
+        Map<String, String> value = new LinkedHashMap<>();
+        value.put("id", "0x" + Long.toHexString(100 + messages.size() + 1));
+        value.put("userId", "1");
+        value.put("voucherId", "10");
+        messages.put(id, value);
+        return new PendingMessage(RecordId.of(id), Consumer.from(SECKILL_ORDER_GROUP, "c0"), idle, deliveries);
+    }
+
+    private ByteRecord byteRecord(String id, Map<String, String> value) {
+        Map<byte[], byte[]> raw = new LinkedHashMap<>();
+        value.forEach((k, v) -> raw.put(bytes(k), bytes(v)));
+        return StreamRecords.newRecord().in(bytes(stream)).withId(RecordId.of(id)).ofBytes(raw);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
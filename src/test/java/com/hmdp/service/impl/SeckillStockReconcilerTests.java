@@ -0,0 +1,210 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.Wrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillPartitioner;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SeckillStockReconcilerTests {
+
+    private static final long VOUCHER_ID = 10;
+
+    private final SeckillStockReconciler reconciler = new SeckillStockReconciler();
+    private final SeckillProperties properties = new SeckillProperties();
+    private final SeckillPartitioner seckillPartitioner = new SeckillPartitioner();
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+    @SuppressWarnings("unchecked")
+    private final SetOperations<String, String> setOps = mock(SetOperations.class);
+    @SuppressWarnings("unchecked")
+    private final ZSetOperations<String, String> zSetOps = mock(ZSetOperations.class);
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+    private final SeckillSoldOutFlags seckillSoldOutFlags = mock(SeckillSoldOutFlags.class);
+
+    @BeforeEach
+    void setUp() {
+        //2个分区2个桶，代金券10的两个桶分别在分区0和分区1
+        properties.setPartitions(2);
+        properties.setStockBuckets(2);
+        ReflectionTestUtils.setField(seckillPartitioner, "seckillProperties", properties);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOps);
+        when(stringRedisTemplate.opsForZSet()).thenReturn(zSetOps);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOps);
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(reconciler, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(reconciler, "seckillPartitioner", seckillPartitioner);
+        ReflectionTestUtils.setField(reconciler, "seckillSoldOutFlags", seckillSoldOutFlags);
+        ReflectionTestUtils.setField(reconciler, "seckillProperties", properties);
+    }
+
+    @Test
+    void testStaleClaimWithoutOrderIsRemovedFromBuyers() {
+        //用户7占位后异常退出，用户8的占位在其它分区下单成功但没有移除占位记录
+        redis(stocks(3, 3), claims(set("7", "8"), set()), buyers(1, 0));
+        when(voucherOrderService.listObjs(any(Wrapper.class))).thenReturn(Collections.singletonList(8L));
+
+        //清理后下单用户只剩8，与数据库一致
+        check(voucher(6), 1);
+
+        verify(setOps).remove(seckillPartitioner.orderKey(0, VOUCHER_ID), "7");
+        verify(setOps, never()).remove(anyString(), eq("8"));
+        verify(zSetOps).remove(seckillPartitioner.claimKey(0, VOUCHER_ID), "7");
+        verify(zSetOps).remove(seckillPartitioner.claimKey(0, VOUCHER_ID), "8");
+        assertEquals(1L, reconciler.stats().get("staleClaims"));
+        assertEquals(0L, reconciler.stats().get("drifted"));
+    }
+
+    @Test
+    void testNoStaleClaimsSkipsDatabase() {
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+
+        check(voucher(6), 1);
+
+        verifyNoInteractions(voucherOrderService, setOps, zSetOps);
+        assertEquals(0L, reconciler.stats().get("drifted"));
+    }
+
+    @Test
+    void testSameDriftTwiceIsRepaired() {
+        properties.getReconcile().setRepair(true);
+        //(8 + 1) - (3 + 3 + 1) = 2，redis少卖了2个
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(8), 1);
+        verifyNoInteractions(valueOps);
+        assertEquals(1L, reconciler.stats().get("drifted"));
+
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(8), 1);
+
+        //补的库存按桶平均分
+        verify(valueOps).increment(seckillPartitioner.stockKey(VOUCHER_ID, 0), 1);
+        verify(valueOps).increment(seckillPartitioner.stockKey(VOUCHER_ID, 1), 1);
+        verify(seckillSoldOutFlags).clear(VOUCHER_ID);
+        assertEquals(1L, reconciler.stats().get("repaired"));
+    }
+
+    @Test
+    void testOversoldDriftTakesFromStockedBuckets() {
+        properties.getReconcile().setRepair(true);
+        //(4 + 1) - (0 + 6 + 1) = -2，redis多卖了2个
+        for (int i = 0; i < 2; i++) {
+            redis(stocks(0, 6), claims(set(), set()), buyers(1, 0));
+            check(voucher(4), 1);
+        }
+
+        verify(valueOps).decrement(seckillPartitioner.stockKey(VOUCHER_ID, 1), 2);
+        verifyNoMoreInteractions(valueOps);
+        verifyNoInteractions(seckillSoldOutFlags);
+    }
+
+    @Test
+    void testDifferentDriftIsNotRepaired() {
+        properties.getReconcile().setRepair(true);
+        //偏差从2变为1，可能是正在处理中的订单，不修复
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(8), 1);
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(7), 1);
+
+        verifyNoInteractions(valueOps);
+        assertEquals(2L, reconciler.stats().get("drifted"));
+        assertEquals(0L, reconciler.stats().get("repaired"));
+    }
+
+    @Test
+    void testConsistentCheckResetsDrift() {
+        properties.getReconcile().setRepair(true);
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(8), 1);
+        redis(stocks(3, 3), claims(set(), set()), buyers(2, 0));
+        check(voucher(8), 1);
+        redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+        check(voucher(8), 1);
+
+        //中间一次一致，前后两次相同的偏差不算连续
+        verifyNoInteractions(valueOps);
+    }
+
+    @Test
+    void testMissingBuyersAreNotRepaired() {
+        properties.getReconcile().setRepair(true);
+        //数据库有2个订单，redis中下单用户集合为空
+        for (int i = 0; i < 2; i++) {
+            redis(stocks(3, 3), claims(set(), set()), buyers(0, 0));
+            check(voucher(6), 2);
+        }
+
+        verifyNoInteractions(valueOps, seckillSoldOutFlags);
+        assertEquals(2L, reconciler.stats().get("refused"));
+        assertEquals(0L, reconciler.stats().get("repaired"));
+    }
+
+    @Test
+    void testRepairDisabledOnlyReports() {
+        for (int i = 0; i < 2; i++) {
+            redis(stocks(3, 3), claims(set(), set()), buyers(1, 0));
+            check(voucher(8), 1);
+        }
+
+        verifyNoInteractions(valueOps);
+        assertEquals(2L, reconciler.stats().get("drifted"));
+    }
+
+    //依次为 读库存桶、查询过期占位、统计下单用户 三次pipeline的结果
+    @SuppressWarnings("unchecked")
+    void redis(List<Object> stocks, List<Object> claims, List<Object> buyers) {
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenReturn(stocks, claims, buyers);
+    }
+
+    void check(SeckillVoucher voucher, long dbOrders) {
+        ReflectionTestUtils.invokeMethod(reconciler, "check", voucher, dbOrders);
+    }
+
+    static SeckillVoucher voucher(int stock) {
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStock(stock);
+        return voucher;
+    }
+
+    static List<Object> stocks(long... stocks) {
+        List<Object> list = new ArrayList<>();
+        for (long stock : stocks) {
+            list.add(String.valueOf(stock));
+        }
+        return list;
+    }
+
+    static List<Object> claims(Set<?>... claims) {
+        return new ArrayList<>(Arrays.asList(claims));
+    }
+
+    static List<Object> buyers(long... sizes) {
+        List<Object> list = new ArrayList<>();
+        for (long size : sizes) {
+            list.add(size);
+        }
+        return list;
+    }
+
+    static Set<String> set(String... members) {
+        return new LinkedHashSet<>(Arrays.asList(members));
+    }
+}
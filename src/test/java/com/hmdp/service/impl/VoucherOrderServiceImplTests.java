@@ -0,0 +1,145 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class VoucherOrderServiceImplTests {
+
+    private static final long VOUCHER_ID = 10;
+    private static final long USER_ID = 1;
+    private static final long ORDER_ID = 100;
+
+    private final VoucherOrderServiceImpl service = new VoucherOrderServiceImpl();
+    private final SeckillPartitioner seckillPartitioner = new SeckillPartitioner();
+    private final LuaScriptRegistry luaScriptRegistry = mock(LuaScriptRegistry.class);
+    private final SeckillSoldOutFlags seckillSoldOutFlags = mock(SeckillSoldOutFlags.class);
+    private final OrderStatusTracker orderStatusTracker = mock(OrderStatusTracker.class);
+    @SuppressWarnings("unchecked")
+    private final SetOperations<String, String> setOps = mock(SetOperations.class);
+    @SuppressWarnings("unchecked")
+    private final ZSetOperations<String, String> zSetOps = mock(ZSetOperations.class);
+
+    @BeforeEach
+    void setUp() {
+        //2个分区2个桶，用户1的主分区为 (10 + 1) % 2 = 1，之后尝试分区0
+        SeckillProperties properties = new SeckillProperties();
+        properties.setPartitions(2);
+        properties.setStockBuckets(2);
+        ReflectionTestUtils.setField(seckillPartitioner, "seckillProperties", properties);
+
+        SeckillAdmission seckillAdmission = mock(SeckillAdmission.class);
+        when(seckillAdmission.tryAcquire(anyLong())).thenReturn(true);
+        IdGenerator idGenerator = mock(IdGenerator.class);
+        when(idGenerator.isLocal()).thenReturn(true);
+        when(idGenerator.nextId("order")).thenReturn(ORDER_ID);
+        IdGenerators idGenerators = mock(IdGenerators.class);
+        when(idGenerators.get("order")).thenReturn(idGenerator);
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOps);
+        when(stringRedisTemplate.opsForZSet()).thenReturn(zSetOps);
+
+        ReflectionTestUtils.setField(service, "seckillPartitioner", seckillPartitioner);
+        ReflectionTestUtils.setField(service, "luaScriptRegistry", luaScriptRegistry);
+        ReflectionTestUtils.setField(service, "seckillSoldOutFlags", seckillSoldOutFlags);
+        ReflectionTestUtils.setField(service, "seckillAdmission", seckillAdmission);
+        ReflectionTestUtils.setField(service, "idGenerators", idGenerators);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "orderStatusTracker", orderStatusTracker);
+
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void testOrderInHomePartitionLeavesNoClaim() {
+        whenSeckill().thenReturn(result(0));
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertTrue(result.getSuccess());
+        assertEquals(ORDER_ID, result.getData());
+        verify(luaScriptRegistry, times(1)).execute(anyString(), eq(List.class), anyList(), any());
+        verifyNoInteractions(setOps, zSetOps);
+    }
+
+    @Test
+    void testOrderInLaterPartitionKeepsBuyerAndDropsClaimMarker() {
+        whenSeckill().thenReturn(result(1), result(0));
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertTrue(result.getSuccess());
+        verify(setOps, never()).remove(anyString(), any());
+        verify(zSetOps).remove(seckillPartitioner.homeClaimKey(VOUCHER_ID, USER_ID), String.valueOf(USER_ID));
+        verify(orderStatusTracker).queued(ORDER_ID, USER_ID, VOUCHER_ID);
+    }
+
+    @Test
+    void testSoldOutEverywhereReleasesClaim() {
+        whenSeckill().thenReturn(result(1), result(1));
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertFalse(result.getSuccess());
+        assertEquals("库存不足", result.getErrorMsg());
+        verifyReleased();
+        verify(seckillSoldOutFlags).markSoldOut(VOUCHER_ID);
+    }
+
+    @Test
+    void testFailureInLaterPartitionReleasesClaim() {
+        whenSeckill().thenReturn(result(1)).thenThrow(new QueryTimeoutException("timeout"));
+
+        assertThrows(QueryTimeoutException.class, () -> service.seckillVoucher(VOUCHER_ID));
+
+        verifyReleased();
+        verifyNoInteractions(orderStatusTracker);
+    }
+
+    @Test
+    void testReleaseFailureDoesNotMaskResult() {
+        whenSeckill().thenReturn(result(1), result(1));
+        when(setOps.remove(anyString(), any())).thenThrow(new QueryTimeoutException("timeout"));
+
+        //移除失败的占位由对账任务按占位时间清理
+        Result result = service.seckillVoucher(VOUCHER_ID);
+        assertEquals("库存不足", result.getErrorMsg());
+    }
+
+    @SuppressWarnings("rawtypes")
+    private org.mockito.stubbing.OngoingStubbing<List> whenSeckill() {
+        return when(luaScriptRegistry.execute(eq(LuaScriptRegistry.SECKILL), eq(List.class), anyList(), any()));
+    }
+
+    private void verifyReleased() {
+        verify(setOps).remove(seckillPartitioner.buyerKey(VOUCHER_ID, USER_ID), String.valueOf(USER_ID));
+        verify(zSetOps).remove(seckillPartitioner.homeClaimKey(VOUCHER_ID, USER_ID), String.valueOf(USER_ID));
+    }
+
+    private static List<Long> result(long code) {
+        return Collections.singletonList(code);
+    }
+}
@@ -0,0 +1,310 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class CacheClientTests {
+
+    private static final long SHOP_ID = 1;
+    private static final String KEY = CACHE_SHOP_KEY + SHOP_ID;
+
+    //模拟redis：多个CacheClient共用相当于多个节点，发布的消息同步投递给所有节点(包括发送者)
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final Map<String, List<MessageListener>> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger redisGets = new AtomicInteger();
+    private final List<String> published = new CopyOnWriteArrayList<>();
+
+    private CacheClient node1;
+    private CacheClient node2;
+
+    @BeforeEach
+    void setUp() {
+        node1 = client();
+        node2 = client();
+    }
+
+    @Test
+    void testEarlyRefreshKeepsOwnFreshLocalEntry() {
+        //redis中的数据已经逻辑过期，命中后一定触发提前刷新
+        values.put(KEY, LogicalEnvelope.wrap(new JsonCacheCodec(), shop("old"), System.currentTimeMillis() - 1));
+        AtomicInteger loads = new AtomicInteger();
+
+        Shop shop = node1.queryWithEarlyRefresh(CACHE_SHOP_KEY, SHOP_ID, Shop.class,
+                id -> {
+                    loads.incrementAndGet();
+                    return shop("new");
+                }, 30L, TimeUnit.MINUTES);
+        assertEquals("old", shop.getName());
+        assertEquals(1, loads.get());
+
+        //刷新的节点收到自己发出的失效广播，不删除刚写入的本地缓存
+        Object local = localCache(node1).getIfPresent(KEY);
+        assertTrue(local instanceof LogicalValue);
+        assertEquals("new", ((Shop) ((LogicalValue<?>) local).getData()).getName());
+        int gets = redisGets.get();
+        assertEquals("new", node1.queryWithEarlyRefresh(CACHE_SHOP_KEY, SHOP_ID, Shop.class,
+                id -> shop("unused"), 30L, TimeUnit.MINUTES).getName());
+        assertEquals(gets, redisGets.get());
+    }
+
+    @Test
+    void testEarlyRefreshInvalidatesOtherNodes() {
+        values.put(KEY, LogicalEnvelope.wrap(new JsonCacheCodec(), shop("old"), System.currentTimeMillis() + 60_000));
+        //node2先读入本地缓存
+        node2.queryWithEarlyRefresh(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> shop("unused"), 30L, TimeUnit.MINUTES);
+        assertNotNull(localCache(node2).getIfPresent(KEY));
+
+        values.put(KEY, LogicalEnvelope.wrap(new JsonCacheCodec(), shop("old"), System.currentTimeMillis() - 1));
+        node1.queryWithEarlyRefresh(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> shop("new"), 30L, TimeUnit.MINUTES);
+
+        assertNull(localCache(node2).getIfPresent(KEY));
+    }
+
+    @Test
+    void testInvalidateDropsLocalEntriesOnAllNodes() {
+        node1.set(KEY, shop("v1"), 30L, TimeUnit.MINUTES);
+        node1.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+        node2.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+        assertNotNull(localCache(node1).getIfPresent(KEY));
+        assertNotNull(localCache(node2).getIfPresent(KEY));
+
+        node1.invalidate(KEY);
+
+        assertNull(localCache(node1).getIfPresent(KEY));
+        assertNull(localCache(node2).getIfPresent(KEY));
+        assertFalse(values.containsKey(KEY));
+    }
+
+    @Test
+    void testSingleFlightSharesOneLoad() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Callable<Shop> query = () -> node1.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> {
+            loads.incrementAndGet();
+            await(release);
+            return shop("db");
+        }, 30L, TimeUnit.MINUTES);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Shop> first = pool.submit(query);
+            Future<Shop> second = pool.submit(query);
+            //两个请求都未命中redis后再放行数据库查询
+            awaitRedisGets(2);
+            release.countDown();
+
+            assertSame(first.get(2, TimeUnit.SECONDS), second.get(2, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testSingleFlightPassesErrorToWaiters() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Callable<Shop> query = () -> node1.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> {
+            loads.incrementAndGet();
+            await(release);
+            throw new Error("db down");
+        }, 30L, TimeUnit.MINUTES);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<Shop> first = pool.submit(query);
+            Future<Shop> second = pool.submit(query);
+            awaitRedisGets(2);
+            release.countDown();
+
+            //Error也要传给等待者，等待者不会一直阻塞
+            for (Future<Shop> future : Arrays.asList(first, second)) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(2, TimeUnit.SECONDS));
+                assertEquals("db down", e.getCause().getMessage());
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        //失败的加载不会残留，下一次请求重新查询数据库
+        assertEquals("db", node1.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class,
+                id -> shop("db"), 30L, TimeUnit.MINUTES).getName());
+    }
+
+    @Test
+    void testMutexLockHolderLoadsAndBroadcasts() {
+        Shop shop = node1.queryWithMutex(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> shop("db"), 30L, TimeUnit.MINUTES);
+
+        assertEquals("db", shop.getName());
+        assertTrue(values.containsKey(KEY));
+        //释放了锁并通知其它节点重建完成
+        assertFalse(values.containsKey(LOCK_SHOP_KEY + SHOP_ID));
+        assertEquals(Collections.singletonList(CACHE_LOADED_CHANNEL), published);
+    }
+
+    @Test
+    void testPassThroughDoesNotBroadcast() {
+        node1.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> shop("db"), 30L, TimeUnit.MINUTES);
+
+        assertTrue(values.containsKey(KEY));
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    void testMutexWaiterIsReleasedByLoadedBroadcast() throws Exception {
+        //node2持有锁正在重建
+        values.put(LOCK_SHOP_KEY + SHOP_ID, "1".getBytes(StandardCharsets.UTF_8));
+        AtomicInteger loads = new AtomicInteger();
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Shop> waiter = pool.submit(() -> node1.queryWithMutex(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> {
+                loads.incrementAndGet();
+                return shop("unused");
+            }, 30L, TimeUnit.MINUTES));
+            //抢锁失败后再检查一次redis，之后等待广播
+            awaitRedisGets(2);
+            Thread.sleep(100);
+            assertFalse(waiter.isDone());
+
+            node2.set(KEY, shop("node2"), 30L, TimeUnit.MINUTES);
+            publish(CACHE_LOADED_CHANNEL, KEY);
+
+            //不需要等到锁过期(10s)
+            assertEquals("node2", waiter.get(2, TimeUnit.SECONDS).getName());
+            assertEquals(0, loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheClient client() {
+        CacheProperties cacheProperties = new CacheProperties();
+        CacheProperties.LocalCacheSpec spec = new CacheProperties.LocalCacheSpec();
+        spec.setPrefix(CACHE_SHOP_KEY);
+        cacheProperties.getLocal().add(spec);
+        CacheCodecs cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "cacheProperties", cacheProperties);
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+
+        RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+        when(stringCommands.get(any())).thenAnswer(inv -> {
+            redisGets.incrementAndGet();
+            return values.get(new String((byte[]) inv.getArgument(0), StandardCharsets.UTF_8));
+        });
+        when(stringCommands.set(any(), any(), any(), any())).thenAnswer(inv -> {
+            values.put(new String((byte[]) inv.getArgument(0), StandardCharsets.UTF_8), inv.getArgument(1));
+            return true;
+        });
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.stringCommands()).thenReturn(stringCommands);
+        ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any())).thenAnswer(inv ->
+                values.putIfAbsent(inv.getArgument(0), "1".getBytes(StandardCharsets.UTF_8)) == null);
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOps);
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection));
+        when(stringRedisTemplate.delete(anyString())).thenAnswer(inv -> values.remove(inv.getArgument(0)) != null);
+        doAnswer(inv -> {
+            publish(inv.getArgument(0), inv.getArgument(1));
+            return null;
+        }).when(stringRedisTemplate).convertAndSend(anyString(), any());
+
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        doAnswer(inv -> {
+            ChannelTopic topic = inv.getArgument(1);
+            listeners.computeIfAbsent(topic.getTopic(), k -> new CopyOnWriteArrayList<>()).add(inv.getArgument(0));
+            return null;
+        }).when(container).addMessageListener(any(MessageListener.class), any(ChannelTopic.class));
+
+        BloomFilters bloomFilters = mock(BloomFilters.class);
+        when(bloomFilters.mightContain(anyString(), any())).thenReturn(true);
+        //重建任务在提交的线程中直接执行
+        CacheRebuildExecutor cacheRebuildExecutor = mock(CacheRebuildExecutor.class);
+        when(cacheRebuildExecutor.submit(anyString(), any(), any())).thenAnswer(inv -> {
+            ((Runnable) inv.getArgument(1)).run();
+            return true;
+        });
+
+        CacheClient client = new CacheClient();
+        ReflectionTestUtils.setField(client, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(client, "cacheProperties", cacheProperties);
+        ReflectionTestUtils.setField(client, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(client, "bloomFilters", bloomFilters);
+        ReflectionTestUtils.setField(client, "cacheCodecs", cacheCodecs);
+        ReflectionTestUtils.setField(client, "cacheRebuildExecutor", cacheRebuildExecutor);
+        ReflectionTestUtils.setField(client, "hotKeyDetector", mock(HotKeyDetector.class));
+        ReflectionTestUtils.invokeMethod(client, "init");
+        return client;
+    }
+
+    private void publish(String channel, Object message) {
+        published.add(channel);
+        DefaultMessage msg = new DefaultMessage(channel.getBytes(StandardCharsets.UTF_8),
+                message.toString().getBytes(StandardCharsets.UTF_8));
+        for (MessageListener listener : listeners.getOrDefault(channel, new CopyOnWriteArrayList<>())) {
+            listener.onMessage(msg, null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cache<String, Object> localCache(CacheClient client) {
+        Map<String, Cache<String, Object>> caches = (Map<String, Cache<String, Object>>) ReflectionTestUtils.getField(client, "localCaches");
+        return caches.get(CACHE_SHOP_KEY);
+    }
+
+    private void awaitRedisGets(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (redisGets.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(redisGets.get() >= count);
+        //读完redis后很快就会进入single-flight
+        Thread.sleep(50);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Shop shop(String name) {
+        Shop shop = new Shop();
+        shop.setId(SHOP_ID);
+        shop.setName(name);
+        return shop;
+    }
+}
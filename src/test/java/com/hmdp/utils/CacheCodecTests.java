@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheCodecTests {
+
+    private CacheCodecs cacheCodecs;
+
+    @BeforeEach
+    void setUp() {
+        //cache:shop: 使用smile，其它前缀使用默认的json
+        CacheProperties cacheProperties = new CacheProperties();
+        CacheProperties.CodecSpec spec = new CacheProperties.CodecSpec();
+        spec.setPrefix("cache:shop:");
+        spec.setCodec(SmileCacheCodec.NAME);
+        cacheProperties.getCodecs().add(spec);
+        cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "cacheProperties", cacheProperties);
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+    }
+
+    @Test
+    void testJsonRoundTrip() {
+        Shop shop = shop();
+        byte[] bytes = new JsonCacheCodec().encode(shop);
+        assertEquals(shop, new JsonCacheCodec().decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testSmileRoundTrip() {
+        Shop shop = shop();
+        shop.setCreateTime(LocalDateTime.of(2024, 1, 2, 3, 4, 5));
+        SmileCacheCodec codec = new SmileCacheCodec();
+        byte[] bytes = codec.encode(shop);
+        assertEquals(CacheCodec.MAGIC, bytes[0]);
+        assertEquals(codec.id(), bytes[1]);
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+        //二进制格式比JSON小
+        assertTrue(bytes.length < new JsonCacheCodec().encode(shop).length);
+    }
+
+    @Test
+    void testForWriteByPrefix() {
+        assertEquals(SmileCacheCodec.NAME, cacheCodecs.forWrite("cache:shop:1").name());
+        assertEquals(JsonCacheCodec.NAME, cacheCodecs.forWrite("cache:blog:1").name());
+    }
+
+    @Test
+    void testDecodeRecognizesCodecFromHeader() {
+        Shop shop = shop();
+        //同一个前缀下新旧格式共存，读取时按头部识别
+        byte[] smile = new SmileCacheCodec().encode(shop);
+        byte[] json = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop, cacheCodecs.decode(smile, Shop.class));
+        assertEquals(shop, cacheCodecs.decode(json, Shop.class));
+    }
+
+    @Test
+    void testDecodeLegacyRedisDataAsPlainValue() {
+        //逻辑过期方法写入的历史RedisData，被普通查询读到时取出其中的data
+        Shop shop = shop();
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(1));
+        byte[] bytes = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop, cacheCodecs.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void testUnknownCodecIdIsRejected() {
+        byte[] bytes = {CacheCodec.MAGIC, (byte) 0x42, 1, 0};
+        assertThrows(IllegalArgumentException.class, () -> cacheCodecs.decode(bytes, Shop.class));
+    }
+
+    static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L).setArea("大关")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setScore(37);
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HotKeyDetectorTests {
+
+    private static final int WINDOW_SECONDS = 10;
+    private static final double THRESHOLD = 10;
+    //窗口内达到阈值需要的访问次数
+    private static final int HOT_HITS = (int) (THRESHOLD * WINDOW_SECONDS);
+
+    @Test
+    void testKeyBecomesHotAtThreshold() {
+        HotKeyDetector detector = detector(100);
+        for (int i = 1; i < HOT_HITS; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        //count-min sketch只会高估，没有其它key时估计值是准确的
+        assertTrue(detector.record("cache:shop:1"));
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertEquals("cache:shop:1", detector.hotKeys().get(0).getKey());
+    }
+
+    @Test
+    void testColdKeysStayColdUnderNoise() {
+        HotKeyDetector detector = detector(100);
+        //大量不同的冷key，每个只访问几次
+        for (int k = 0; k < 2000; k++) {
+            for (int i = 0; i < 5; i++) {
+                detector.record("cache:shop:" + k);
+            }
+        }
+        assertTrue(detector.hotKeys().isEmpty());
+        //冷key之间碰撞产生的高估不影响热点判断
+        for (int i = 0; i < HOT_HITS; i++) {
+            detector.record("cache:shop:hot");
+        }
+        assertTrue(detector.isHot("cache:shop:hot"));
+    }
+
+    @Test
+    void testHotKeysAreCappedAndSortedByRate() {
+        HotKeyDetector detector = detector(2);
+        for (int i = 0; i < HOT_HITS * 3; i++) {
+            detector.record("a");
+        }
+        for (int i = 0; i < HOT_HITS * 2; i++) {
+            detector.record("b");
+        }
+        for (int i = 0; i < HOT_HITS; i++) {
+            detector.record("c");
+        }
+        List<HotKeyDetector.HotKey> hotKeys = detector.hotKeys();
+        assertEquals(2, hotKeys.size());
+        assertEquals("a", hotKeys.get(0).getKey());
+        assertEquals("b", hotKeys.get(1).getKey());
+        assertFalse(detector.isHot("c"));
+    }
+
+    @Test
+    void testDisabledDetectorNeverReportsHot() {
+        HotKeyDetector detector = detector(100);
+        CacheProperties.HotKey config = (CacheProperties.HotKey) ReflectionTestUtils.getField(detector, "config");
+        config.setEnabled(false);
+        for (int i = 0; i < HOT_HITS * 2; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        assertTrue(detector.hotKeys().isEmpty());
+    }
+
+    private static HotKeyDetector detector(int maxHotKeys) {
+        CacheProperties cacheProperties = new CacheProperties();
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        config.setWindowSeconds(WINDOW_SECONDS);
+        config.setThreshold(THRESHOLD);
+        config.setSampleRate(1);
+        config.setMaxHotKeys(maxHotKeys);
+        HotKeyDetector detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "cacheProperties", cacheProperties);
+        ReflectionTestUtils.invokeMethod(detector, "init");
+        return detector;
+    }
+}
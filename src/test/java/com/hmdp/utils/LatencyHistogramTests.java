@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTests {
+
+    @Test
+    void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(0, histogram.percentile(0.99));
+    }
+
+    @Test
+    void testPercentileIsUpperBoundOfBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        //90个80us，10个4ms
+        for (int i = 0; i < 90; i++) {
+            histogram.record(micros(80));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(micros(4000));
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(100, histogram.percentile(0.5));
+        assertEquals(100, histogram.percentile(0.9));
+        assertEquals(4000, histogram.percentile(0.91));
+        assertEquals(4000, histogram.percentile(1));
+    }
+
+    @Test
+    void testPercentileNeverExceedsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(micros(300));
+        //所在桶的上界为500，但记录过的最大值只有300
+        assertEquals(300, histogram.percentile(0.99));
+    }
+
+    @Test
+    void testOverflowBucketReturnsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(micros(10));
+        histogram.record(micros(3_000_000));
+        assertEquals(50, histogram.percentile(0.5));
+        assertEquals(3_000_000, histogram.percentile(0.99));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSnapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(micros(40));
+        histogram.record(micros(60));
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(2L, snapshot.get("count"));
+        assertEquals(50L, snapshot.get("meanMicros"));
+        assertEquals(60L, snapshot.get("maxMicros"));
+        Map<String, Long> buckets = (Map<String, Long>) snapshot.get("buckets");
+        assertEquals(1L, buckets.get("<=50"));
+        assertEquals(1L, buckets.get("<=100"));
+        assertEquals(0L, buckets.get(">1000000"));
+    }
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogicalEnvelopeTests {
+
+    private CacheCodecs cacheCodecs;
+
+    @BeforeEach
+    void setUp() {
+        cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "cacheProperties", new CacheProperties());
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+    }
+
+    @Test
+    void testHeaderLayout() {
+        long expireMillis = 1_704_067_200_123L;
+        byte[] bytes = LogicalEnvelope.wrap(new SmileCacheCodec(), CacheCodecTests.shop(), expireMillis);
+        assertTrue(LogicalEnvelope.isEnvelope(bytes));
+        assertEquals(new SmileCacheCodec().id(), LogicalEnvelope.codecId(bytes));
+        assertEquals(expireMillis, LogicalEnvelope.expireMillis(bytes));
+        //只读取头部即可判断过期
+        byte[] header = new byte[LogicalEnvelope.HEADER_LENGTH];
+        System.arraycopy(bytes, 0, header, 0, header.length);
+        assertTrue(LogicalEnvelope.isEnvelope(header));
+        assertEquals(expireMillis, LogicalEnvelope.expireMillis(header));
+    }
+
+    @Test
+    void testRoundTripWithEachCodec() {
+        Shop shop = CacheCodecTests.shop();
+        long expireMillis = System.currentTimeMillis() + 20_000;
+        for (CacheCodec codec : new CacheCodec[]{new JsonCacheCodec(), new SmileCacheCodec()}) {
+            byte[] bytes = LogicalEnvelope.wrap(codec, shop, expireMillis);
+            LogicalValue<Shop> value = cacheCodecs.decodeLogical(bytes, Shop.class);
+            assertEquals(expireMillis, value.getExpireMillis());
+            assertEquals(shop, value.getData());
+            //普通查询读到逻辑过期数据时只返回数据
+            assertEquals(shop, cacheCodecs.decode(bytes, Shop.class));
+        }
+    }
+
+    @Test
+    void testDecodeLegacyRedisData() {
+        Shop shop = CacheCodecTests.shop();
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20).truncatedTo(ChronoUnit.MILLIS);
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(expireTime);
+        byte[] bytes = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(LogicalEnvelope.isEnvelope(bytes));
+        LogicalValue<Shop> value = cacheCodecs.decodeLogical(bytes, Shop.class);
+        assertEquals(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), value.getExpireMillis());
+        assertEquals(shop, value.getData());
+    }
+
+    @Test
+    void testPlainValueWithoutExpiryIsTreatedAsExpired() {
+        Shop shop = CacheCodecTests.shop();
+        byte[] json = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        byte[] smile = new SmileCacheCodec().encode(shop);
+        for (byte[] bytes : new byte[][]{json, smile}) {
+            LogicalValue<Shop> value = cacheCodecs.decodeLogical(bytes, Shop.class);
+            assertEquals(0, value.getExpireMillis());
+            assertEquals(shop, value.getData());
+        }
+    }
+
+    @Test
+    void testShortOrForeignBytesAreNotEnvelopes() {
+        assertFalse(LogicalEnvelope.isEnvelope(null));
+        assertFalse(LogicalEnvelope.isEnvelope(new byte[]{CacheCodec.MAGIC, LogicalEnvelope.ENVELOPE_ID}));
+        assertFalse(LogicalEnvelope.isEnvelope(new SmileCacheCodec().encode(CacheCodecTests.shop())));
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import cn.hutool.crypto.SecureUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class LuaScriptRegistryTests {
+
+    private static final int SCRIPTS = 7;
+
+    private final LuaScriptRegistry registry = new LuaScriptRegistry();
+    private final RedisScriptingCommands scriptingCommands = mock(RedisScriptingCommands.class);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.scriptingCommands()).thenReturn(scriptingCommands);
+        //SCRIPT LOAD返回脚本内容的sha1
+        when(scriptingCommands.scriptLoad(any())).thenAnswer(inv -> SecureUtil.sha1(new String((byte[]) inv.getArgument(0), StandardCharsets.UTF_8)));
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection));
+        ReflectionTestUtils.setField(registry, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @Test
+    void testLoadsOnlyOwnScripts() {
+        init(false);
+
+        verify(scriptingCommands, times(SCRIPTS)).scriptLoad(any());
+        Map<String, Object> stats = registry.stats();
+        assertEquals(new LinkedHashSet<>(Arrays.asList(LuaScriptRegistry.SECKILL, LuaScriptRegistry.UNLOCK,
+                        LuaScriptRegistry.LEASE_RENEW, LuaScriptRegistry.REENTRANT_LOCK, LuaScriptRegistry.REENTRANT_UNLOCK,
+                        LuaScriptRegistry.REENTRANT_RENEW, LuaScriptRegistry.ORDER_STATUS_FAIL)),
+                new LinkedHashSet<>(new ArrayList<>(stats.keySet()).subList(2, stats.size())));
+    }
+
+    @Test
+    void testNoScriptReloadsAndRetriesOnce() {
+        init(false);
+        when(scriptingCommands.evalSha(anyString(), any(ReturnType.class), anyInt(), any()))
+                .thenThrow(new InvalidDataAccessApiUsageException("NOSCRIPT No matching script. Please use EVAL."))
+                .thenReturn(0L);
+
+        Long result = registry.execute(LuaScriptRegistry.UNLOCK, Long.class, Collections.singletonList("lock:order"), "owner");
+
+        assertEquals(0L, result);
+        //启动时加载一轮，收到NOSCRIPT后再加载一轮，然后重试一次
+        verify(scriptingCommands, times(SCRIPTS * 2)).scriptLoad(any());
+        verify(scriptingCommands, times(2)).evalSha(eq(sha(LuaScriptRegistry.UNLOCK)), eq(ReturnType.INTEGER), eq(1), any());
+        assertEquals(1L, registry.stats().get("reloads"));
+    }
+
+    @Test
+    void testOtherErrorsAreNotRetried() {
+        init(false);
+        when(scriptingCommands.evalSha(anyString(), any(ReturnType.class), anyInt(), any()))
+                .thenThrow(new InvalidDataAccessApiUsageException("ERR wrong number of arguments"));
+
+        assertThrows(InvalidDataAccessApiUsageException.class, () ->
+                registry.execute(LuaScriptRegistry.UNLOCK, Long.class, Collections.singletonList("lock:order"), "owner"));
+
+        verify(scriptingCommands, times(SCRIPTS)).scriptLoad(any());
+        verify(scriptingCommands, times(1)).evalSha(anyString(), any(ReturnType.class), anyInt(), any());
+        assertEquals(0L, registry.stats().get("reloads"));
+        assertEquals(1L, scriptStats(LuaScriptRegistry.UNLOCK).get("errors"));
+    }
+
+    @Test
+    void testEvalFallbackSendsScriptSource() {
+        init(true);
+        when(scriptingCommands.eval(any(), any(ReturnType.class), anyInt(), any()))
+                .thenReturn(Arrays.asList(1L, "ok".getBytes(StandardCharsets.UTF_8)));
+
+        Object result = registry.execute(LuaScriptRegistry.SECKILL, List.class, Collections.singletonList("k"), 1);
+
+        //批量回复中的字符串转为String
+        assertEquals(Arrays.asList(1L, "ok"), result);
+        verify(scriptingCommands).eval(any(), eq(ReturnType.MULTI), eq(1), any());
+        verify(scriptingCommands, never()).scriptLoad(any());
+        verify(scriptingCommands, never()).evalSha(anyString(), any(ReturnType.class), anyInt(), any());
+        assertEquals(true, registry.stats().get("evalFallback"));
+    }
+
+    @Test
+    void testUnknownScript() {
+        init(false);
+        assertThrows(IllegalArgumentException.class, () ->
+                registry.execute("missing", Long.class, Collections.emptyList()));
+    }
+
+    private void init(boolean evalFallback) {
+        ReflectionTestUtils.setField(registry, "evalFallback", evalFallback);
+        ReflectionTestUtils.invokeMethod(registry, "init");
+    }
+
+    private String sha(String name) {
+        return (String) scriptStats(name).get("sha");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> scriptStats(String name) {
+        return (Map<String, Object>) registry.stats().get(name);
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class OrderStatusTrackerTests {
+
+    private static final long ORDER_ID = 100;
+    private static final long TIMEOUT = 5000;
+
+    private final OrderStatusTracker tracker = new OrderStatusTracker();
+    private final ThreadPoolTaskScheduler taskScheduler = mock(ThreadPoolTaskScheduler.class);
+    private final ScheduledFuture<?> timeoutFuture = mock(ScheduledFuture.class);
+    private final LuaScriptRegistry luaScriptRegistry = mock(LuaScriptRegistry.class);
+
+    //模拟redis中的状态hash
+    private final Map<String, Map<Object, Object>> hashes = new ConcurrentHashMap<>();
+    //提交给定时任务线程池的超时任务，由测试手动触发
+    private final List<Runnable> timeouts = new ArrayList<>();
+    private MessageListener listener;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        HashOperations<String, Object, Object> hashOps = mock(HashOperations.class);
+        when(hashOps.entries(anyString())).thenAnswer(inv -> new HashMap<>(hashes.getOrDefault(inv.getArgument(0), Collections.emptyMap())));
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOps);
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        doAnswer(inv -> {
+            listener = inv.getArgument(0);
+            return null;
+        }).when(container).addMessageListener(any(MessageListener.class), eq(new ChannelTopic(ORDER_STATUS_CHANNEL)));
+        doAnswer(inv -> {
+            timeouts.add(inv.getArgument(0));
+            return timeoutFuture;
+        }).when(taskScheduler).schedule(any(Runnable.class), any(Date.class));
+
+        ReflectionTestUtils.setField(tracker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(tracker, "luaScriptRegistry", luaScriptRegistry);
+        ReflectionTestUtils.setField(tracker, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(tracker, "taskScheduler", taskScheduler);
+        ReflectionTestUtils.invokeMethod(tracker, "init");
+    }
+
+    @Test
+    void testAwaitCompletesOnStatusMessage() {
+        status(OrderStatusTracker.QUEUED);
+        CompletableFuture<Map<Object, Object>> future = tracker.await(ORDER_ID, TIMEOUT);
+        assertFalse(future.isDone());
+
+        //消费者写库后发布订单id
+        status(OrderStatusTracker.PERSISTED);
+        publish(ORDER_ID);
+
+        assertEquals(OrderStatusTracker.PERSISTED, future.getNow(null).get("status"));
+        verify(timeoutFuture).cancel(false);
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void testAwaitTimesOutWithCurrentStatus() {
+        status(OrderStatusTracker.QUEUED);
+        CompletableFuture<Map<Object, Object>> future = tracker.await(ORDER_ID, TIMEOUT);
+
+        timeouts.get(0).run();
+
+        Map<Object, Object> status = future.getNow(null);
+        assertEquals(OrderStatusTracker.QUEUED, status.get("status"));
+        assertFalse(OrderStatusTracker.isFinal(status));
+        assertTrue(waiters().isEmpty());
+        //超时后的通知不会再查询
+        publish(ORDER_ID);
+        assertSame(status, future.getNow(null));
+    }
+
+    @Test
+    void testAwaitReturnsImmediatelyWhenAlreadyFinal() {
+        //登记之前消费者已经写入终态并发布了通知
+        status(OrderStatusTracker.FAILED);
+
+        CompletableFuture<Map<Object, Object>> future = tracker.await(ORDER_ID, TIMEOUT);
+
+        assertTrue(future.isDone());
+        assertEquals(OrderStatusTracker.FAILED, future.getNow(null).get("status"));
+        verify(timeoutFuture).cancel(false);
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void testTimedOutWaiterDoesNotRemoveOthers() {
+        status(OrderStatusTracker.QUEUED);
+        CompletableFuture<Map<Object, Object>> first = tracker.await(ORDER_ID, TIMEOUT);
+        CompletableFuture<Map<Object, Object>> second = tracker.await(ORDER_ID, TIMEOUT * 2);
+
+        timeouts.get(0).run();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(1, waiters().get(ORDER_ID).size());
+
+        status(OrderStatusTracker.PERSISTED);
+        publish(ORDER_ID);
+        assertEquals(OrderStatusTracker.PERSISTED, second.getNow(null).get("status"));
+        assertTrue(waiters().isEmpty());
+    }
+
+    @Test
+    void testFailedPassesChannelAsArgument() {
+        tracker.failed(ORDER_ID, "库存不足");
+
+        //集群下频道不是key，不能放在KEYS中
+        verify(luaScriptRegistry).execute(LuaScriptRegistry.ORDER_STATUS_FAIL, Long.class,
+                Collections.singletonList(ORDER_STATUS_KEY + ORDER_ID),
+                "库存不足", RedisConstants.ORDER_STATUS_TTL * 60, ORDER_STATUS_CHANNEL, ORDER_ID);
+    }
+
+    private void status(String status) {
+        Map<Object, Object> hash = new HashMap<>();
+        hash.put("status", status);
+        hash.put("userId", "1");
+        hash.put("voucherId", "10");
+        hashes.put(ORDER_STATUS_KEY + ORDER_ID, hash);
+    }
+
+    private void publish(long orderId) {
+        listener.onMessage(new DefaultMessage(ORDER_STATUS_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                String.valueOf(orderId).getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, Set<?>> waiters() {
+        return (Map<Long, Set<?>>) ReflectionTestUtils.getField(tracker, "waiters");
+    }
+}
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class RedisBloomFilterTests {
+
+    //模拟redis中的bitmap，多个RedisBloomFilter共用相当于多个节点
+    private final Map<String, byte[]> bitmaps = new HashMap<>();
+    private final List<byte[]> bitOpKeys = new ArrayList<>();
+    //GET返回之前执行，模拟在GET之后、镜像更新之前发生的add
+    private Runnable afterGet;
+
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        RedisStringCommands stringCommands = mock(RedisStringCommands.class);
+        when(stringCommands.setBit(any(), anyLong(), anyBoolean())).thenAnswer(inv -> {
+            long offset = inv.getArgument(1);
+            byte[] bitmap = bitmap(inv.getArgument(0), (int) (offset >>> 3) + 1);
+            bitmap[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+            return false;
+        });
+        when(stringCommands.get(any())).thenAnswer(inv -> {
+            byte[] bitmap = bitmaps.get(new String((byte[]) inv.getArgument(0)));
+            byte[] snapshot = bitmap == null ? null : bitmap.clone();
+            if (afterGet != null) {
+                Runnable hook = afterGet;
+                afterGet = null;
+                hook.run();
+            }
+            return snapshot;
+        });
+        when(stringCommands.set(any(), any())).thenAnswer(inv -> {
+            bitmaps.put(new String((byte[]) inv.getArgument(0)), ((byte[]) inv.getArgument(1)).clone());
+            return true;
+        });
+        when(stringCommands.bitOp(any(), any(), any())).thenAnswer(inv -> {
+            Object[] args = inv.getArguments();
+            byte[][] sources = Arrays.copyOfRange(args, 2, args.length, byte[][].class);
+            bitOpKeys.add(inv.getArgument(1));
+            bitOpKeys.addAll(Arrays.asList(sources));
+            byte[] dest = bitmap(inv.getArgument(1), 0);
+            for (byte[] source : sources) {
+                byte[] bitmap = bitmaps.get(new String(source));
+                if (bitmap != null) {
+                    dest = bitmap(inv.getArgument(1), bitmap.length);
+                    for (int i = 0; i < bitmap.length; i++) {
+                        dest[i] |= bitmap[i];
+                    }
+                }
+            }
+            return (long) dest.length;
+        });
+        RedisKeyCommands keyCommands = mock(RedisKeyCommands.class);
+        when(keyCommands.del(any())).thenAnswer(inv -> {
+            for (Object key : inv.getArguments()) {
+                bitmaps.remove(new String((byte[]) key));
+            }
+            return 1L;
+        });
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.stringCommands()).thenReturn(stringCommands);
+        when(connection.keyCommands()).thenReturn(keyCommands);
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(inv -> ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection));
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(inv -> {
+            ((RedisCallback<Object>) inv.getArgument(0)).doInRedis(connection);
+            return new ArrayList<>();
+        });
+    }
+
+    @Test
+    void testNotReadyFilterAdmitsEverything() {
+        RedisBloomFilter filter = filter();
+        assertTrue(filter.mightContain("missing"));
+    }
+
+    @Test
+    void testRebuildRejectsUnknownValues() {
+        RedisBloomFilter filter = filter();
+        filter.rebuild(sink -> {
+            for (int i = 1; i <= 100; i++) {
+                sink.accept(String.valueOf(i));
+            }
+        });
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(filter.mightContain(String.valueOf(i)));
+        }
+        int falsePositives = 0;
+        for (int i = 1000; i < 2000; i++) {
+            if (filter.mightContain(String.valueOf(i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 50, "误判过多: " + falsePositives);
+    }
+
+    @Test
+    void testAddRacingWithRebuildIsNotLost() {
+        RedisBloomFilter filter = filter();
+        //重建读取合并结果之后才写入的元素，只存在于本地镜像和redis，不在GET的结果中
+        afterGet = () -> filter.add("new-shop");
+        filter.rebuild(sink -> sink.accept("1"));
+        assertTrue(filter.mightContain("1"));
+        assertTrue(filter.mightContain("new-shop"));
+    }
+
+    @Test
+    void testRefreshPullsBitsMissedByBroadcast() {
+        RedisBloomFilter node1 = filter();
+        RedisBloomFilter node2 = filter();
+        node1.rebuild(sink -> sink.accept("1"));
+        node2.rebuild(sink -> sink.accept("1"));
+        //node1没有收到广播
+        node2.add("42");
+        assertFalse(node1.mightContain("42"));
+        node1.refresh();
+        assertTrue(node1.mightContain("42"));
+    }
+
+    @Test
+    void testRebuildKeysShareOneSlot() {
+        filter().rebuild(sink -> sink.accept("1"));
+        assertEquals(3, bitOpKeys.size());
+        int slot = SlotHash.getSlot(bitOpKeys.get(0));
+        for (byte[] key : bitOpKeys) {
+            assertEquals(slot, SlotHash.getSlot(key), new String(key));
+        }
+    }
+
+    private RedisBloomFilter filter() {
+        return new RedisBloomFilter("shop", 1000, 0.01, stringRedisTemplate);
+    }
+
+    private byte[] bitmap(byte[] rawKey, int minLength) {
+        String key = new String(rawKey);
+        byte[] bitmap = bitmaps.getOrDefault(key, new byte[0]);
+        if (bitmap.length < minLength) {
+            bitmap = Arrays.copyOf(bitmap, minLength);
+        }
+        bitmaps.put(key, bitmap);
+        return bitmap;
+    }
+}
@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RedisIdWorkerTests {
+
+    private static final long SEGMENT_SIZE = 1000;
+
+    //模拟redis的计数器，多个RedisIdWorker共用相当于多个节点
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final AtomicLong leases = new AtomicLong();
+
+    @Test
+    void testSegmentHandOffIsUniqueAcrossThreadsAndNodes() throws InterruptedException {
+        RedisIdWorker node1 = worker(SEGMENT_SIZE);
+        RedisIdWorker node2 = worker(SEGMENT_SIZE);
+        int threads = 8;
+        int perThread = 25_000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            RedisIdWorker worker = t % 2 == 0 ? node1 : node2;
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        ids.add(worker.nextId("order"));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(threads * perThread, ids.size());
+        //每个号段INCRBY一次，每个节点最多多预取一段
+        long total = (long) threads * perThread;
+        assertTrue(leases.get() <= total / SEGMENT_SIZE + 4, "租用次数过多: " + leases.get());
+    }
+
+    @Test
+    void testSequenceContinuesIntoNextSegment() {
+        RedisIdWorker worker = worker(SEGMENT_SIZE);
+        long last = -1;
+        for (int i = 0; i < SEGMENT_SIZE * 3; i++) {
+            long count = worker.nextId("order") & 0xffffffffL;
+            //单线程取号时号段首尾相接
+            assertEquals(last < 0 ? 1 : last + 1, count);
+            last = count;
+        }
+    }
+
+    @Test
+    void testWithoutSegmentEachIdIncrementsRedis() {
+        RedisIdWorker worker = worker(0);
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, worker.nextId("order") & 0xffffffffL);
+        }
+        assertEquals(0, leases.get());
+    }
+
+    @Test
+    void testComposeKeepsTimestampAndCount() {
+        long id = RedisIdWorker.compose(123, 456);
+        assertEquals(123, id >>> 32);
+        assertEquals(456, id & 0xffffffffL);
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisIdWorker worker(long segmentSize) {
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(ops.increment(anyString())).thenAnswer(inv -> counter(inv.getArgument(0)).incrementAndGet());
+        when(ops.increment(anyString(), anyLong())).thenAnswer(inv -> {
+            leases.incrementAndGet();
+            return counter(inv.getArgument(0)).addAndGet(inv.getArgument(1));
+        });
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        IdProperties idProperties = new IdProperties();
+        idProperties.setSegmentSize(segmentSize);
+        RedisIdWorker worker = new RedisIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "idProperties", idProperties);
+        return worker;
+    }
+
+    private AtomicLong counter(String key) {
+        return counters.computeIfAbsent(key, k -> new AtomicLong());
+    }
+}
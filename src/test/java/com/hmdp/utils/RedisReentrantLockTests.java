@@ -0,0 +1,229 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASED_CHANNEL;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class RedisReentrantLockTests {
+
+    private static final long WATCHDOG_MILLIS = 30_000;
+
+    //模拟redis：锁的hash和过期时间，时钟手动推进；按三个lua脚本的逻辑执行
+    private final Map<String, Map<String, Long>> hashes = new HashMap<>();
+    private final Map<String, Long> expireAt = new HashMap<>();
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private RedisLockManager manager;
+    private MessageListener releasedListener;
+    private final ExecutorService es = Executors.newSingleThreadExecutor();
+
+    @BeforeEach
+    void setUp() {
+        LuaScriptRegistry registry = mock(LuaScriptRegistry.class);
+        when(registry.execute(anyString(), eq(Long.class), anyList(), any())).thenAnswer(inv -> {
+            Object[] args = inv.getArguments();
+            Object[] argv = new Object[args.length - 3];
+            System.arraycopy(args, 3, argv, 0, argv.length);
+            return script(inv.getArgument(0), inv.getArgument(2), argv);
+        });
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        manager = new RedisLockManager();
+        ReflectionTestUtils.setField(manager, "luaScriptRegistry", registry);
+        ReflectionTestUtils.setField(manager, "redisMessageListenerContainer", container);
+        ReflectionTestUtils.setField(manager, "watchdogTimeout", Duration.ofMillis(WATCHDOG_MILLIS));
+        ReflectionTestUtils.invokeMethod(manager, "init");
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listener.capture(), any(Topic.class));
+        releasedListener = listener.getValue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(manager, "shutdown");
+        es.shutdownNow();
+    }
+
+    @Test
+    void testReentryCountsAndReleasesOnLastUnlock() throws Exception {
+        RedisReentrantLock lock = manager.getLock("order");
+        assertTrue(lock.tryLock());
+        assertTrue(lock.tryLock());
+        //重入只登记一次续期
+        assertEquals(1, manager.watchedCount());
+
+        lock.unlock();
+        assertFalse(es.submit(() -> lock.tryLock(10)).get());
+        assertEquals(1, manager.watchedCount());
+
+        lock.unlock();
+        assertEquals(0, manager.watchedCount());
+        assertTrue(es.submit(() -> lock.tryLock(10)).get());
+    }
+
+    @Test
+    void testReentryNeverShortensTtl() {
+        RedisReentrantLock lock = manager.getLock("order");
+        assertTrue(lock.tryLock());
+        //看门狗的锁重入时传入较短的超时时间，过期时间保持不变
+        assertTrue(lock.tryLock(1));
+        assertEquals(WATCHDOG_MILLIS, pttl("lock:order"));
+        //更长的超时时间会延长
+        assertTrue(lock.tryLock(60));
+        assertEquals(60_000, pttl("lock:order"));
+    }
+
+    @Test
+    void testUnlockWithoutHoldingThrows() throws Exception {
+        RedisReentrantLock lock = manager.getLock("order");
+        assertThrows(IllegalMonitorStateException.class, lock::unlock);
+
+        assertTrue(lock.tryLock());
+        Future<?> other = es.submit(lock::unlock);
+        ExecutionException e = assertThrows(ExecutionException.class, other::get);
+        assertTrue(e.getCause() instanceof IllegalMonitorStateException);
+        //其它线程的释放不影响持有者
+        assertEquals(1L, hashes.get("lock:order").values().iterator().next());
+    }
+
+    @Test
+    void testWatchdogRenewsHeldLocksAndDropsLostOnes() {
+        RedisReentrantLock lock = manager.getLock("order");
+        assertTrue(lock.tryLock());
+        now.addAndGet(20_000);
+        assertEquals(WATCHDOG_MILLIS - 20_000, pttl("lock:order"));
+
+        ReflectionTestUtils.invokeMethod(manager, "renewAll");
+        assertEquals(WATCHDOG_MILLIS, pttl("lock:order"));
+        assertEquals(1, manager.watchedCount());
+
+        //锁被删除后停止续期
+        synchronized (this) {
+            hashes.remove("lock:order");
+            expireAt.remove("lock:order");
+        }
+        ReflectionTestUtils.invokeMethod(manager, "renewAll");
+        assertEquals(0, manager.watchedCount());
+    }
+
+    @Test
+    void testWaiterWokenByReleaseNotification() throws Exception {
+        RedisReentrantLock lock = manager.getLock("order");
+        assertTrue(lock.tryLock());
+        CountDownLatch waiting = new CountDownLatch(1);
+        Future<Boolean> waiter = es.submit(() -> {
+            waiting.countDown();
+            return lock.lock(10, TimeUnit.SECONDS);
+        });
+        assertTrue(waiting.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(waiter.isDone());
+
+        //释放时发布通知，等待的线程不需要等到锁过期(30s)
+        lock.unlock();
+        assertTrue(waiter.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testScriptsOnlyTouchTheLockKey() throws IOException {
+        //集群下一个脚本的所有key必须在同一个slot，频道通过ARGV传入
+        for (String name : new String[]{"reentrant_lock", "reentrant_unlock", "reentrant_renew"}) {
+            String source = read("lua/" + name + ".lua");
+            assertTrue(source.contains("KEYS[1]"), name);
+            assertFalse(source.contains("KEYS[2]"), name);
+        }
+    }
+
+    private synchronized Long script(String name, List<String> keys, Object[] argv) {
+        assertEquals(1, keys.size(), "锁脚本只能有一个key");
+        String key = keys.get(0);
+        String owner = argv[0].toString();
+        Map<String, Long> hash = hash(key);
+        switch (name) {
+            case LuaScriptRegistry.REENTRANT_LOCK: {
+                long ttl = Long.parseLong(argv[1].toString());
+                if (hash == null) {
+                    hash = new HashMap<>();
+                    hash.put(owner, 1L);
+                    hashes.put(key, hash);
+                    expireAt.put(key, now.get() + ttl);
+                    return null;
+                }
+                if (hash.containsKey(owner)) {
+                    hash.merge(owner, 1L, Long::sum);
+                    if (pttl(key) < ttl) {
+                        expireAt.put(key, now.get() + ttl);
+                    }
+                    return null;
+                }
+                return pttl(key);
+            }
+            case LuaScriptRegistry.REENTRANT_UNLOCK: {
+                if (hash == null || !hash.containsKey(owner)) {
+                    return null;
+                }
+                if (hash.merge(owner, -1L, Long::sum) > 0) {
+                    return 0L;
+                }
+                hashes.remove(key);
+                expireAt.remove(key);
+                releasedListener.onMessage(new DefaultMessage(argv[1].toString().getBytes(StandardCharsets.UTF_8),
+                        key.getBytes(StandardCharsets.UTF_8)), null);
+                assertEquals(LOCK_RELEASED_CHANNEL, argv[1].toString());
+                return 1L;
+            }
+            case LuaScriptRegistry.REENTRANT_RENEW: {
+                if (hash == null || !hash.containsKey(owner)) {
+                    return 0L;
+                }
+                expireAt.put(key, now.get() + Long.parseLong(argv[1].toString()));
+                return 1L;
+            }
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    //过期的锁视为不存在
+    private synchronized Map<String, Long> hash(String key) {
+        Long at = expireAt.get(key);
+        if (at != null && at <= now.get()) {
+            hashes.remove(key);
+            expireAt.remove(key);
+        }
+        return hashes.get(key);
+    }
+
+    private synchronized long pttl(String key) {
+        Long at = expireAt.get(key);
+        return at == null ? -2 : at - now.get();
+    }
+
+    private static String read(String path) throws IOException {
+        try (InputStream in = new ClassPathResource(path).getInputStream()) {
+            return IoUtil.read(in, StandardCharsets.UTF_8);
+        }
+    }
+}
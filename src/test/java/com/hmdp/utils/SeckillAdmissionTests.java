@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SeckillAdmissionTests {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void testBucketStartsFullAndRejectsAfterBurst() {
+        SeckillAdmission.TokenBucket bucket = new SeckillAdmission.TokenBucket();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(10, 5, 0));
+        }
+        assertFalse(bucket.tryAcquire(10, 5, 0));
+    }
+
+    @Test
+    void testBucketRefillsAtRate() {
+        SeckillAdmission.TokenBucket bucket = new SeckillAdmission.TokenBucket();
+        for (int i = 0; i < 5; i++) {
+            bucket.tryAcquire(10, 5, 0);
+        }
+        //100ms补充一个令牌
+        assertFalse(bucket.tryAcquire(10, 5, SECOND / 20));
+        assertTrue(bucket.tryAcquire(10, 5, SECOND / 10));
+        assertFalse(bucket.tryAcquire(10, 5, SECOND / 10));
+    }
+
+    @Test
+    void testBucketNeverExceedsCapacity() {
+        SeckillAdmission.TokenBucket bucket = new SeckillAdmission.TokenBucket();
+        bucket.tryAcquire(10, 5, 0);
+        //空闲很久也只补满到容量
+        int admitted = 0;
+        while (bucket.tryAcquire(10, 5, 100 * SECOND)) {
+            admitted++;
+        }
+        assertEquals(5, admitted);
+    }
+
+    @Test
+    void testShrinkingCapacityDropsExtraTokens() {
+        SeckillAdmission.TokenBucket bucket = new SeckillAdmission.TokenBucket();
+        assertTrue(bucket.tryAcquire(10, 100, 0));
+        //剩余库存变少，容量收紧到2，多出的令牌作废
+        assertTrue(bucket.tryAcquire(10, 2, 0));
+        assertTrue(bucket.tryAcquire(10, 2, 0));
+        assertFalse(bucket.tryAcquire(10, 2, 0));
+    }
+
+    @Test
+    void testTryAcquireShedsBeyondBurst() {
+        SeckillProperties properties = new SeckillProperties();
+        SeckillProperties.Limit limit = properties.getAdmission().getDefaults();
+        limit.setRate(0.001);
+        limit.setBurst(5);
+        SeckillAdmission admission = new SeckillAdmission();
+        ReflectionTestUtils.setField(admission, "seckillProperties", properties);
+
+        int admitted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (admission.tryAcquire(1L)) {
+                admitted++;
+            }
+        }
+        assertEquals(5, admitted);
+        Map<String, Object> stats = admission.stats();
+        assertEquals(5L, stats.get("admitted"));
+        assertEquals(15L, stats.get("shedLocal"));
+    }
+
+    @Test
+    void testDisabledAdmissionAdmitsEverything() {
+        SeckillProperties properties = new SeckillProperties();
+        properties.getAdmission().setEnabled(false);
+        properties.getAdmission().getDefaults().setBurst(1);
+        SeckillAdmission admission = new SeckillAdmission();
+        ReflectionTestUtils.setField(admission, "seckillProperties", properties);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(admission.tryAcquire(1L));
+        }
+    }
+}
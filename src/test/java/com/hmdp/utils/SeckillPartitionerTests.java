@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SeckillPartitionerTests {
+
+    private static final String DATE = "2024:01:01";
+
+    @Test
+    void testSplitStockIsEvenWithRemainderInFirstBuckets() {
+        SeckillPartitioner partitioner = partitioner(4, 4);
+        assertArrayEquals(new int[]{3, 3, 2, 2}, partitioner.splitStock(10));
+        assertArrayEquals(new int[]{1, 0, 0, 0}, partitioner.splitStock(1));
+        assertArrayEquals(new int[]{0, 0, 0, 0}, partitioner.splitStock(0));
+        assertEquals(100, Arrays.stream(partitioner.splitStock(100)).sum());
+    }
+
+    @Test
+    void testRouteStartsAtHomePartitionAndCoversEveryBucket() {
+        SeckillPartitioner partitioner = partitioner(4, 4);
+        long voucherId = 10;
+        for (long userId = 1; userId <= 8; userId++) {
+            List<SeckillPartitioner.Route> routes = partitioner.route(voucherId, userId, DATE);
+            //第一个是主分区，下单用户集合只在主分区
+            assertTrue(routes.get(0).isHome());
+            assertEquals(partitioner.homePartition(voucherId, userId), routes.get(0).getPartition());
+            assertEquals(partitioner.buyerKey(voucherId, userId), routes.get(0).getKeys().get(0));
+            assertFalse(routes.stream().skip(1).anyMatch(SeckillPartitioner.Route::isHome));
+            //每个库存桶恰好出现一次，第一个是 userId % K 号桶
+            Set<String> stockKeys = new HashSet<>();
+            for (SeckillPartitioner.Route route : routes) {
+                stockKeys.addAll(route.getKeys().subList(5, route.getKeys().size()));
+            }
+            assertEquals(4, stockKeys.size());
+            assertEquals(partitioner.stockKey(voucherId, (int) (userId % 4)), routes.get(0).getKeys().get(5));
+            assertEquals(partitioner.homeClaimKey(voucherId, userId), routes.get(0).getKeys().get(4));
+        }
+    }
+
+    @Test
+    void testKeysOfOneRouteShareHashTag() {
+        SeckillPartitioner partitioner = partitioner(3, 6);
+        for (SeckillPartitioner.Route route : partitioner.route(7, 42, DATE)) {
+            String tag = "{" + route.getPartition() + "}";
+            for (String key : route.getKeys()) {
+                assertTrue(key.contains(tag), key + " 不在分区 " + tag);
+            }
+        }
+    }
+
+    @Test
+    void testBucketsInSamePartitionShareOneRoute() {
+        //桶数多于分区数时，同一分区的桶在一次脚本调用中依次尝试
+        SeckillPartitioner partitioner = partitioner(2, 4);
+        List<SeckillPartitioner.Route> routes = partitioner.route(1, 3, DATE);
+        assertEquals(2, routes.size());
+        assertEquals(5 + 2, routes.get(0).getKeys().size());
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), partitioner.partitionsOf(1));
+    }
+
+    @Test
+    void testSinglePartitionHasOneHomeRoute() {
+        SeckillPartitioner partitioner = partitioner(1, 1);
+        List<SeckillPartitioner.Route> routes = partitioner.route(5, 9, DATE);
+        assertEquals(1, routes.size());
+        assertTrue(routes.get(0).isHome());
+    }
+
+    private static SeckillPartitioner partitioner(int partitions, int buckets) {
+        SeckillProperties properties = new SeckillProperties();
+        properties.setPartitions(partitions);
+        properties.setStockBuckets(buckets);
+        SeckillPartitioner partitioner = new SeckillPartitioner();
+        ReflectionTestUtils.setField(partitioner, "seckillProperties", properties);
+        return partitioner;
+    }
+}
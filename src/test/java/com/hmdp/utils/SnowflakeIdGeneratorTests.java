@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.SnowflakeIdGenerator.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnowflakeIdGeneratorTests {
+
+    private static final long WORKER_ID = 5;
+
+    private final IdProperties idProperties = new IdProperties();
+
+    @Test
+    void testBitLayout() {
+        long now = BEGIN_MILLIS + 1000;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(idProperties, WORKER_ID, () -> now);
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+
+        //最高位为0，第62位为标记位
+        assertTrue(first > 0);
+        assertEquals(1, first >>> (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS));
+        assertEquals(1000, timestamp(first));
+        assertEquals(WORKER_ID, worker(first));
+        assertEquals(0, sequence(first));
+        assertEquals(1000, timestamp(second));
+        assertEquals(1, sequence(second));
+    }
+
+    @Test
+    void testSequenceOverflowSpillsIntoNextMillisecond() {
+        long now = BEGIN_MILLIS + 1000;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(idProperties, WORKER_ID, () -> now);
+        long last = 0;
+        for (int i = 0; i < 1 << SEQUENCE_BITS; i++) {
+            last = generator.nextId("order");
+        }
+        assertEquals(1000, timestamp(last));
+        assertEquals((1 << SEQUENCE_BITS) - 1, sequence(last));
+
+        //同一毫秒序列号用完，进位到下一毫秒
+        long spilled = generator.nextId("order");
+        assertEquals(1001, timestamp(spilled));
+        assertEquals(0, sequence(spilled));
+        assertTrue(spilled > last);
+    }
+
+    @Test
+    void testClockRollbackBorrowsLastTimestamp() {
+        AtomicLong clock = new AtomicLong(BEGIN_MILLIS + 10_000);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(idProperties, WORKER_ID, clock::get);
+        long before = generator.nextId("order");
+
+        //回拨500ms，在允许范围内，沿用上一次的时间戳继续递增
+        clock.addAndGet(-500);
+        long during = generator.nextId("order");
+        assertEquals(timestamp(before), timestamp(during));
+        assertEquals(sequence(before) + 1, sequence(during));
+        assertTrue(during > before);
+
+        //回拨超过max-backward，拒绝发号
+        clock.addAndGet(-idProperties.getSnowflake().getMaxBackward().toMillis());
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+
+        //时钟追上后恢复
+        clock.set(BEGIN_MILLIS + 10_001);
+        long after = generator.nextId("order");
+        assertEquals(10_001, timestamp(after));
+        assertTrue(after > during);
+    }
+
+    @Test
+    void testConcurrentIdsAreUniqueAndIncreasingPerThread() throws InterruptedException {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(idProperties, WORKER_ID, System::currentTimeMillis);
+        int threads = 8;
+        int perThread = 50_000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicLong outOfOrder = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(threads);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    long last = 0;
+                    for (int i = 0; i < perThread; i++) {
+                        long id = generator.nextId("order");
+                        if (id <= last) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        last = id;
+                        ids.add(id);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(threads * perThread, ids.size());
+        assertEquals(0, outOfOrder.get());
+        for (long id : ids) {
+            assertEquals(WORKER_ID, worker(id));
+        }
+    }
+
+    private static long timestamp(long id) {
+        return (id >>> (WORKER_BITS + SEQUENCE_BITS)) & ((1L << TIMESTAMP_BITS) - 1);
+    }
+
+    private static long worker(long id) {
+        return (id >>> SEQUENCE_BITS) & ((1L << WORKER_BITS) - 1);
+    }
+
+    private static long sequence(long id) {
+        return id & ((1L << SEQUENCE_BITS) - 1);
+    }
+}